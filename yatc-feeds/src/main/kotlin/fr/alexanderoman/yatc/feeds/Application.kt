@@ -16,20 +16,34 @@
 
 package fr.alexanderoman.yatc.feeds
 
+import com.fasterxml.jackson.annotation.JsonIgnore
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.LoadingCache
 import io.jsonwebtoken.Jwts
 import io.jsonwebtoken.security.Keys
-import okhttp3.Cache
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import io.micrometer.core.instrument.binder.MeterBinder
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics
 import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.boot.autoconfigure.SpringBootApplication
+import org.springframework.boot.context.properties.ConfigurationProperties
 import org.springframework.boot.runApplication
-import org.springframework.boot.web.servlet.FilterRegistrationBean
 import org.springframework.cloud.client.loadbalancer.LoadBalanced
 import org.springframework.cloud.stream.annotation.EnableBinding
+import org.springframework.cloud.stream.annotation.Input
+import org.springframework.cloud.stream.annotation.Output
 import org.springframework.cloud.stream.annotation.StreamListener
+import org.springframework.cloud.stream.endpoint.BindingsEndpoint
 import org.springframework.cloud.stream.messaging.Sink
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
@@ -37,49 +51,369 @@ import org.springframework.core.env.Environment
 import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Pageable
 import org.springframework.data.jpa.repository.JpaRepository
+import org.springframework.data.jpa.repository.Modifying
 import org.springframework.data.jpa.repository.Query
-import org.springframework.data.repository.findByIdOrNull
 import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
 import org.springframework.http.client.OkHttp3ClientHttpRequestFactory
+import org.springframework.messaging.MessageChannel
+import org.springframework.messaging.SubscribableChannel
+import org.springframework.messaging.support.MessageBuilder
+import org.springframework.scheduling.TaskScheduler
+import org.springframework.scheduling.annotation.EnableScheduling
+import org.springframework.scheduling.annotation.Scheduled
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
 import org.springframework.security.config.annotation.web.builders.HttpSecurity
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter
+import org.springframework.security.core.Authentication
 import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.security.core.context.SecurityContextImpl
 import org.springframework.security.web.authentication.logout.LogoutFilter
 import org.springframework.stereotype.Component
+import org.springframework.transaction.PlatformTransactionManager
 import org.springframework.transaction.annotation.Transactional
+import org.springframework.transaction.support.TransactionTemplate
+import org.springframework.util.DigestUtils
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.RestController
 import org.springframework.web.client.RestTemplate
+import org.springframework.web.context.request.WebRequest
 import org.springframework.web.filter.OncePerRequestFilter
-import org.springframework.web.filter.ShallowEtagHeaderFilter
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter
+import java.io.Serializable
 import java.nio.file.Files
+import java.security.Principal
+import java.time.Duration
+import java.time.Instant
 import java.time.OffsetDateTime
+import java.time.ZoneOffset
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CopyOnWriteArraySet
-import java.util.concurrent.TimeUnit
-import java.util.stream.Stream
-import javax.persistence.Column
-import javax.persistence.Entity
-import javax.persistence.Id
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.BiConsumer
+import java.util.function.Consumer
+import java.util.function.Supplier
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+import javax.persistence.*
 import javax.servlet.FilterChain
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import javax.validation.constraints.NotBlank
-import kotlin.streams.toList
 
 @SpringBootApplication
+@EnableScheduling
 class Application
 
 fun main(args: Array<String>) {
     runApplication<Application>(*args)
 }
 
+@Configuration
+@ConfigurationProperties("feeds")
+class AppProperties {
+    /**
+     * Home timeline settings.
+     */
+    val timeline = Timeline()
+
+    class Timeline {
+        /**
+         * Maximum number of posts kept in a user timeline.
+         */
+        var maxLength: Int = 800
+        /**
+         * Posts from authors having more followers than this value are not pushed
+         * to follower timelines: these posts are merged into feeds at read time.
+         */
+        var fanOutThreshold: Int = 10000
+        /**
+         * Time after which authors whose posts are merged into feeds at read time are reloaded:
+         * posts not pushed by other instances may be missing from feeds until then.
+         */
+        var mergedAuthorsRefresh: Duration = Duration.ofMinutes(1)
+        /**
+         * Delay between two runs of the timeline pruning job.
+         */
+        var pruneDelay: Duration = Duration.ofMinutes(5)
+    }
+
+    /**
+     * Feed hydration settings.
+     */
+    val hydration = Hydration()
+
+    class Hydration {
+        /**
+         * Maximum number of concurrent calls made to hydrate feeds.
+         */
+        var poolSize: Int = 20
+        /**
+         * Maximum number of pending calls waiting for a hydration thread.
+         */
+        var queueCapacity: Int = 200
+        /**
+         * Maximum time spent hydrating a feed page: posts which are not
+         * hydrated in time are left out of the page.
+         */
+        var timeout: Duration = Duration.ofSeconds(3)
+    }
+
+    /**
+     * Streaming feed settings.
+     */
+    val stream = Stream()
+
+    class Stream {
+        /**
+         * Number of threads writing hydrated posts to streaming feed responses.
+         */
+        var poolSize: Int = 4
+        /**
+         * Maximum number of posts waiting to be written: posts are left out
+         * of streaming feed responses when this limit is reached.
+         */
+        var queueCapacity: Int = 200
+    }
+
+    /**
+     * User profile cache settings.
+     */
+    val users = Users()
+
+    class Users {
+        /**
+         * Maximum number of user profiles kept in memory.
+         */
+        var cacheSize: Long = 10000
+        /**
+         * Time after which a cached user profile is evicted.
+         */
+        var cacheTtl: Duration = Duration.ofMinutes(30)
+        /**
+         * Time after which a cached user profile is refreshed in background
+         * when it is requested: the cached value is used meanwhile.
+         */
+        var cacheRefresh: Duration = Duration.ofMinutes(10)
+    }
+
+    /**
+     * Feed events (SSE) settings.
+     */
+    val sse = Sse()
+
+    class Sse {
+        /**
+         * Number of threads sending events to SSE connections.
+         */
+        var poolSize: Int = 4
+        /**
+         * Maximum number of pending events for a SSE connection:
+         * connections which cannot keep up are closed.
+         */
+        var queueCapacity: Int = 16
+        /**
+         * Time after which a SSE connection is closed.
+         */
+        var timeout: Duration = Duration.ofMinutes(5)
+        /**
+         * Delay between two heartbeats sent to SSE connections,
+         * used for detecting closed connections.
+         */
+        var heartbeat: Duration = Duration.ofSeconds(30)
+        /**
+         * Maximum number of SSE connections opened by an authenticated user, for any feed.
+         */
+        var maxConnectionsPerUser: Int = 5
+        /**
+         * Maximum number of SSE connections for this instance.
+         */
+        var maxConnections: Int = 10000
+        /**
+         * Notifications for a user received during this time window are sent
+         * as a single event. Set to zero for sending notifications right away.
+         */
+        var coalesceWindow: Duration = Duration.ofMillis(500)
+    }
+
+    /**
+     * Feed page cache settings.
+     */
+    val cache = PageCache()
+
+    class PageCache {
+        /**
+         * Maximum number of feed pages kept in memory.
+         */
+        var maxPages: Long = 10000
+        /**
+         * Time after which a cached feed page is evicted.
+         */
+        var ttl: Duration = Duration.ofMinutes(5)
+    }
+
+    /**
+     * User connections cache settings.
+     */
+    val connections = Connections()
+
+    class Connections {
+        /**
+         * Maximum number of user ids kept in memory, for all
+         * followers and followings lists.
+         */
+        var cacheMaxIds: Long = 1000000
+        /**
+         * Time after which a cached list is refreshed in background
+         * when it is requested: the cached list is used meanwhile.
+         */
+        var cacheRefresh: Duration = Duration.ofMinutes(1)
+        /**
+         * Time after which a cached list is evicted: a cached list is used
+         * until then if yatc-connections is not available.
+         */
+        var cacheTtl: Duration = Duration.ofHours(1)
+    }
+
+    /**
+     * Post ingestion settings.
+     */
+    val ingest = Ingest()
+
+    class Ingest {
+        /**
+         * Maximum number of received posts saved in a single transaction.
+         * Each listener thread waits until its post is saved, so that a batch
+         * holds at most as many posts as the post consumer concurrency:
+         * a larger value has no effect.
+         */
+        var batchSize: Int = 16
+        /**
+         * Post consumer is paused when saving a batch takes longer than
+         * this value on average, or when a post has been waiting longer than
+         * this value to be saved, letting the broker hold incoming posts.
+         */
+        var maxWriteLatency: Duration = Duration.ofSeconds(2)
+        /**
+         * Initial time during which the post consumer is paused: this time is doubled
+         * when saving posts is still slow after the consumer is resumed.
+         */
+        var minPause: Duration = Duration.ofSeconds(5)
+        /**
+         * Maximum time during which the post consumer is paused.
+         */
+        var maxPause: Duration = Duration.ofMinutes(1)
+        /**
+         * Delay between two checks of the post consumer state.
+         */
+        var checkDelay: Duration = Duration.ofSeconds(1)
+    }
+
+    /**
+     * Feed history retention settings.
+     */
+    val retention = Retention()
+
+    class Retention {
+        /**
+         * Posts older than this value are removed from feeds.
+         */
+        var horizon: Duration = Duration.ofDays(365)
+        /**
+         * Delay between two runs of the feed pruning job.
+         */
+        var pruneDelay: Duration = Duration.ofHours(1)
+    }
+
+    /**
+     * Recent posts cache settings, used for merging posts from followed authors.
+     */
+    val authors = Authors()
+
+    class Authors {
+        /**
+         * Maximum number of recent posts kept in memory for an author.
+         */
+        var ringSize: Int = 20
+        /**
+         * Maximum number of authors for which recent posts are kept in memory.
+         */
+        var cacheSize: Long = 10000
+        /**
+         * Time after which recent posts from an author are evicted,
+         * when these posts are not read.
+         */
+        var cacheTtl: Duration = Duration.ofMinutes(30)
+        /**
+         * Time after which recent posts from an author are reloaded in background
+         * from the database when these posts are read.
+         */
+        var cacheRefresh: Duration = Duration.ofMinutes(10)
+    }
+
+    /**
+     * Downstream services settings.
+     */
+    val clients = Clients()
+
+    class Clients {
+        /**
+         * yatc-posts client settings.
+         */
+        val posts = Downstream()
+        /**
+         * yatc-users client settings.
+         */
+        val users = Downstream()
+        /**
+         * yatc-connections client settings.
+         */
+        val connections = Downstream()
+    }
+
+    /**
+     * User activity settings, used for loading feed pages in advance.
+     */
+    val activity = Activity()
+
+    class Activity {
+        /**
+         * Users are active when their feed was read during this time window:
+         * first feed pages are loaded in cache for active users when new posts are received.
+         */
+        var window: Duration = Duration.ofMinutes(10)
+        /**
+         * Maximum number of active users tracked by this instance.
+         */
+        var maxUsers: Long = 100000
+    }
+
+    class Downstream {
+        /**
+         * Maximum number of concurrent calls to this service.
+         */
+        var maxConcurrentCalls: Int = 20
+        /**
+         * Maximum time waiting for a call slot: calls are rejected
+         * after this time, and a fallback value is used.
+         */
+        var maxWait: Duration = Duration.ofMillis(100)
+        /**
+         * Connect and read timeout for calls to this service.
+         */
+        var timeout: Duration = Duration.ofSeconds(2)
+    }
+}
+
 @Configuration
 class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapter() {
     @Value("\${security.tokenSecret}")
@@ -87,7 +421,6 @@ class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapte
 
     override fun configure(http: HttpSecurity?) {
         http!!.authorizeRequests()
-                .antMatchers("/api/v1/feeds/**/sse").permitAll()
                 .antMatchers("/api/**").authenticated()
                 .anyRequest().permitAll().and()
                 .httpBasic().disable().formLogin().disable()
@@ -95,7 +428,10 @@ class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapte
                 .csrf().disable()
                 .addFilterBefore(object : OncePerRequestFilter() {
                     override fun doFilterInternal(req: HttpServletRequest, resp: HttpServletResponse, chain: FilterChain) {
+                        // Browsers cannot set headers for SSE connections:
+                        // the token is then sent as a request parameter.
                         val authToken = req.getHeader(HttpHeaders.AUTHORIZATION)
+                                ?: req.getParameter("access_token")?.let { "Bearer $it" }
                         if (authToken != null && authToken.startsWith("Bearer ")) {
                             val jwt = authToken.replaceFirst("Bearer ".toRegex(), "")
                             val jwtClaims = Jwts.parser()
@@ -115,19 +451,144 @@ class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapte
 }
 
 @RestController
-class FeedController(private val feedService: FeedService) {
-    @Transactional(readOnly = true)
+class FeedController(private val feedService: FeedService,
+                     private val activeUsers: ActiveUsers,
+                     private val props: AppProperties,
+                     private val feedStreamExecutor: ThreadPoolTaskExecutor,
+                     private val feedHydrationTimeoutsCounter: Counter) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val ndjson = MediaType.parseMediaType("application/x-ndjson")
+
     @GetMapping("/api/v1/feeds/{user}")
     fun getUserFeed(@PathVariable("user") @NotBlank user: String,
-                    @RequestParam("page", defaultValue = "0") page: Int): ResponseEntity<FeedResponse> {
-        val posts = feedService.getFeed(user, page).toList()
-        return ResponseEntity.ok(FeedResponse(posts))
+                    @RequestParam("page", defaultValue = "0") page: Int,
+                    @RequestParam("before", required = false) before: String?,
+                    @RequestParam("since", required = false) since: String?,
+                    webRequest: WebRequest): ResponseEntity<FeedResponse> {
+        activeUsers.onFeedRead(user)
+        if (since != null) {
+            return getUserFeedSince(user, since)
+        }
+        // Use "before" to get posts following a page: "page" is kept for compatibility,
+        // and pages are numbered from this cursor when it is set.
+        val cursor = try {
+            before?.let { FeedCursor.decode(it) }
+        } catch (e: IllegalArgumentException) {
+            return ResponseEntity.badRequest().build()
+        }
+
+        // Feed ETag is set from the posts in this page, so that
+        // unchanged pages are detected before posts are hydrated.
+        val feedPage = feedService.getFeedPage(user, page, cursor) { isNotModified(webRequest, it) }
+        val resp = if (feedPage.feed == null) ResponseEntity.status(HttpStatus.NOT_MODIFIED) else ResponseEntity.ok()
+        feedPage.etag?.let { resp.eTag(it) }
+        return feedPage.feed?.let { resp.body(it) } ?: resp.build()
+    }
+
+    private fun isNotModified(webRequest: WebRequest, etag: String) =
+            webRequest.getHeaderValues(HttpHeaders.IF_NONE_MATCH).orEmpty()
+                    .flatMap { it.split(",") }.map { it.trim().removePrefix("W/") }
+                    .any { it == "*" || it == etag.removePrefix("W/") }
+
+    private fun getUserFeedSince(user: String, since: String): ResponseEntity<FeedResponse> {
+        // Use "since" with the latest post id or a feed cursor to only get new posts.
+        val cursor = try {
+            val post = since.toLongOrNull()
+            if (post != null) feedService.getCursor(post) else FeedCursor.decode(since)
+        } catch (e: IllegalArgumentException) {
+            return ResponseEntity.badRequest().build()
+        }
+        if (cursor == null) {
+            // This post is not in feeds anymore: send the first page.
+            return ResponseEntity.ok(feedService.getFeed(user, 0))
+        }
+        val feed = feedService.getFeedSince(user, cursor)
+                ?: return ResponseEntity.status(HttpStatus.NOT_MODIFIED).build()
+        return ResponseEntity.ok(feed)
+    }
+
+    @GetMapping("/api/v1/feeds/{user}/stream")
+    fun streamUserFeed(@PathVariable("user") @NotBlank user: String,
+                       @RequestParam("page", defaultValue = "0") page: Int,
+                       @RequestParam("before", required = false) before: String?): ResponseEntity<ResponseBodyEmitter> {
+        // Each post is written as a JSON line as soon as it is hydrated:
+        // posts may not be sorted.
+        activeUsers.onFeedRead(user)
+        val cursor = try {
+            before?.let { FeedCursor.decode(it) }
+        } catch (e: IllegalArgumentException) {
+            return ResponseEntity.badRequest().build()
+        }
+        val feed = feedService.streamFeed(user, page, cursor)
+        val emitter = ResponseBodyEmitter(props.hydration.timeout.toMillis())
+        emitter.onTimeout {
+            logger.warn("Feed hydration timed out: some posts are missing")
+            feedHydrationTimeoutsCounter.increment()
+            emitter.complete()
+        }
+        // Posts are written from a dedicated thread pool:
+        // hydration threads do not wait for slow clients.
+        val sentPosts = feed.posts.map { postFuture ->
+            postFuture.thenAcceptAsync(Consumer { post ->
+                if (post != null) {
+                    synchronized(emitter) {
+                        emitter.send(post, MediaType.APPLICATION_JSON)
+                        emitter.send("\n", MediaType.TEXT_PLAIN)
+                    }
+                }
+            }, feedStreamExecutor)
+        }
+        CompletableFuture.allOf(*sentPosts.toTypedArray())
+                .whenCompleteAsync(BiConsumer { _, _ -> emitter.complete() }, feedStreamExecutor)
+
+        val resp = ResponseEntity.ok().contentType(ndjson)
+        feed.next?.let { resp.header("X-Next-Cursor", it) }
+        return resp.body(emitter)
+    }
+}
+
+/**
+ * Feed position, used to get posts following a feed page.
+ */
+data class FeedCursor(
+        val created: OffsetDateTime,
+        val post: Long
+) {
+    fun encode(): String =
+            Base64.getUrlEncoder().withoutPadding().encodeToString("${created.toInstant()}/$post".toByteArray())
+
+    /**
+     * Check if a post comes before this position in feeds, being more recent.
+     */
+    fun isBefore(created: OffsetDateTime, post: Long) =
+            created.isAfter(this.created) || (created.isEqual(this.created) && post > this.post)
+
+    /**
+     * Check if a post comes after this position in feeds, being older.
+     */
+    fun isAfter(created: OffsetDateTime, post: Long) =
+            created.isBefore(this.created) || (created.isEqual(this.created) && post < this.post)
+
+    companion object {
+        fun of(item: FeedItem) = FeedCursor(item.created, item.post)
+
+        fun decode(cursor: String): FeedCursor =
+                try {
+                    val parts = String(Base64.getUrlDecoder().decode(cursor)).split("/")
+                    FeedCursor(OffsetDateTime.ofInstant(Instant.parse(parts[0]), ZoneOffset.UTC), parts[1].toLong())
+                } catch (e: Exception) {
+                    throw IllegalArgumentException("Invalid feed cursor: $cursor", e)
+                }
     }
 }
 
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 data class FeedEvent(
-        val id: Long
+        val id: Long,
+        val ids: List<Long> = emptyList(),
+        // Clients can display these posts without fetching their feed again:
+        // this list is incomplete when some post authors are unknown.
+        val posts: List<Post> = emptyList()
 )
 
 data class PostSummary(
@@ -148,207 +609,1760 @@ data class Post(
 data class User(
         val id: String,
         val name: String?,
-        val avatar: String?
-)
+        val avatar: String?,
+        // Set when user details are not available: this user is only known by its id.
+        @get:JsonIgnore
+        val unknown: Boolean = false
+) {
+    companion object {
+        fun unknown(id: String) = User(id, id, null, true)
+    }
+}
 
+@JsonInclude(JsonInclude.Include.NON_NULL)
 data class FeedResponse(
-        val posts: List<Post>
+        val posts: List<Post>,
+        val next: String? = null
 )
 
 @Entity
+@Table(indexes = [Index(columnList = "author,created"), Index(columnList = "bucket")])
 data class FeedItem(
         @Id
         var post: Long,
         @Column(nullable = false)
         var author: String,
         @Column(nullable = false)
-        var created: OffsetDateTime
+        var created: OffsetDateTime,
+        // Post content is copied from received messages, so that feeds can be served
+        // without fetching posts: this column is empty for posts received before.
+        @Column(length = 256)
+        var content: String? = null,
+        // Feed items are stored in daily buckets, so that old items are removed a day at a time.
+        // This column is empty for posts received before, until the pruning job sets it.
+        var bucket: Int? = FeedBucket.of(created),
+        // Posts which were not pushed to follower timelines are merged into feeds at read time.
+        // This column is empty for posts received before.
+        var fannedOut: Boolean? = null
 )
 
+/**
+ * Daily buckets used for storing feed items.
+ */
+object FeedBucket {
+    fun of(created: OffsetDateTime) = created.atZoneSameInstant(ZoneOffset.UTC).toLocalDate().toEpochDay().toInt()
+
+    /**
+     * Get the oldest bucket kept by the retention horizon.
+     */
+    fun oldest(horizon: Duration) = of(OffsetDateTime.now(ZoneOffset.UTC).minus(horizon))
+}
+
 interface FeedItemRepository : JpaRepository<FeedItem, Long> {
-    @Query("SELECT f FROM FeedItem f WHERE f.author in (:authors) ORDER BY f.created DESC")
-    fun findFromAuthors(authors: List<String>, page: Pageable): Stream<FeedItem>
+    @Query("SELECT f.post FROM FeedItem f WHERE f.post in (:posts)")
+    fun findExistingPosts(posts: Collection<Long>): List<Long>
+
+    @Query("SELECT f FROM FeedItem f WHERE f.author in (:authors) AND f.bucket >= :bucket " +
+            "ORDER BY f.created DESC, f.post DESC")
+    fun findFromAuthors(authors: List<String>, bucket: Int, page: Pageable): List<FeedItem>
+
+    @Query("SELECT f FROM FeedItem f WHERE f.author in (:authors) AND f.bucket >= :bucket " +
+            "AND (f.created < :created OR (f.created = :created AND f.post < :post)) " +
+            "ORDER BY f.created DESC, f.post DESC")
+    fun findFromAuthorsBefore(authors: List<String>, bucket: Int,
+                              created: OffsetDateTime, post: Long, page: Pageable): List<FeedItem>
+
+    @Query("SELECT f FROM FeedItem f WHERE f.author in (:authors) AND f.bucket >= :bucket " +
+            "AND (f.fannedOut = false OR f.fannedOut IS NULL) ORDER BY f.created DESC, f.post DESC")
+    fun findNotFannedOutFromAuthors(authors: List<String>, bucket: Int, page: Pageable): List<FeedItem>
+
+    @Query("SELECT f FROM FeedItem f WHERE f.author in (:authors) AND f.bucket >= :bucket " +
+            "AND (f.fannedOut = false OR f.fannedOut IS NULL) " +
+            "AND (f.created < :created OR (f.created = :created AND f.post < :post)) " +
+            "ORDER BY f.created DESC, f.post DESC")
+    fun findNotFannedOutFromAuthorsBefore(authors: List<String>, bucket: Int,
+                                          created: OffsetDateTime, post: Long, page: Pageable): List<FeedItem>
+
+    @Query("SELECT DISTINCT f.bucket FROM FeedItem f WHERE f.bucket < :bucket")
+    fun findBucketsBefore(bucket: Int): List<Int>
+
+    @Query("SELECT f FROM FeedItem f WHERE f.bucket IS NULL")
+    fun findWithoutBucket(page: Pageable): List<FeedItem>
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM FeedItem f WHERE f.bucket = :bucket")
+    fun deleteBucket(bucket: Int): Int
+}
+
+@Entity
+@Table(indexes = [Index(columnList = "owner,created"), Index(columnList = "bucket")])
+@IdClass(TimelineItemId::class)
+data class TimelineItem(
+        @Id
+        @Column(length = 64)
+        var owner: String,
+        @Id
+        var post: Long,
+        @Column(nullable = false)
+        var created: OffsetDateTime,
+        var bucket: Int? = FeedBucket.of(created)
+)
+
+data class TimelineItemId(
+        var owner: String = "",
+        var post: Long = 0
+) : Serializable
+
+interface TimelineItemRepository : JpaRepository<TimelineItem, TimelineItemId> {
+    fun existsByOwner(owner: String): Boolean
+
+    @Query("SELECT f FROM TimelineItem t, FeedItem f WHERE t.owner = :owner AND t.post = f.post " +
+            "AND t.bucket >= :bucket ORDER BY t.created DESC, t.post DESC")
+    fun findTimeline(owner: String, bucket: Int, page: Pageable): List<FeedItem>
+
+    @Query("SELECT f FROM TimelineItem t, FeedItem f WHERE t.owner = :owner AND t.post = f.post " +
+            "AND t.bucket >= :bucket AND (t.created < :created OR (t.created = :created AND t.post < :post)) " +
+            "ORDER BY t.created DESC, t.post DESC")
+    fun findTimelineBefore(owner: String, bucket: Int,
+                           created: OffsetDateTime, post: Long, page: Pageable): List<FeedItem>
+
+    @Query("SELECT t.post FROM TimelineItem t WHERE t.owner = :owner AND t.post in (:posts)")
+    fun findExistingPosts(owner: String, posts: Collection<Long>): List<Long>
+
+    @Modifying
+    @Query("DELETE FROM TimelineItem t WHERE t.owner = :owner " +
+            "AND t.post IN (SELECT f.post FROM FeedItem f WHERE f.author in (:authors))")
+    fun deleteFromAuthors(owner: String, authors: Collection<String>): Int
+
+    @Query("SELECT t.created FROM TimelineItem t WHERE t.owner = :owner ORDER BY t.created DESC")
+    fun findCreated(owner: String, page: Pageable): List<OffsetDateTime>
+
+    @Modifying
+    @Query("DELETE FROM TimelineItem t WHERE t.owner = :owner AND t.created < :created")
+    fun deleteOlderThan(owner: String, created: OffsetDateTime): Int
+
+    @Query("SELECT DISTINCT t.bucket FROM TimelineItem t WHERE t.bucket < :bucket")
+    fun findBucketsBefore(bucket: Int): List<Int>
+
+    @Query("SELECT t FROM TimelineItem t WHERE t.bucket IS NULL")
+    fun findWithoutBucket(page: Pageable): List<TimelineItem>
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM TimelineItem t WHERE t.bucket = :bucket")
+    fun deleteBucket(bucket: Int): Int
+}
+
+/**
+ * Author whose posts were added to a user timeline: posts from authors followed
+ * since then are added to this timeline when it is read.
+ */
+@Entity
+@IdClass(TimelineAuthorId::class)
+data class TimelineAuthor(
+        @Id
+        @Column(length = 64)
+        var owner: String,
+        @Id
+        @Column(length = 64)
+        var author: String
+)
+
+data class TimelineAuthorId(
+        var owner: String = "",
+        var author: String = ""
+) : Serializable
+
+interface TimelineAuthorRepository : JpaRepository<TimelineAuthor, TimelineAuthorId> {
+    @Query("SELECT a.author FROM TimelineAuthor a WHERE a.owner = :owner")
+    fun findAuthors(owner: String): List<String>
+
+    @Modifying
+    @Query("DELETE FROM TimelineAuthor a WHERE a.owner = :owner AND a.author in (:authors)")
+    fun deleteAuthors(owner: String, authors: Collection<String>): Int
+}
+
+@Entity
+@Table(indexes = [Index(columnList = "followers")])
+data class FeedAuthor(
+        @Id
+        @Column(length = 64)
+        var id: String,
+        @Column(nullable = false)
+        var followers: Int,
+        // Set once a post from this author is not pushed to follower timelines,
+        // even if this author has fewer followers later on.
+        var skippedFanOut: Boolean? = false
+)
+
+interface FeedAuthorRepository : JpaRepository<FeedAuthor, String> {
+    /**
+     * Find authors whose posts may be missing from follower timelines.
+     */
+    @Query("SELECT a.id FROM FeedAuthor a WHERE a.followers > :threshold OR a.skippedFanOut = true")
+    fun findMergedAuthors(threshold: Int): List<String>
+}
+
+/**
+ * Saved post messages, sent by the instance saving a post once it is committed,
+ * and received by every instance, without a consumer group.
+ */
+interface PostNotifications {
+    companion object {
+        const val INPUT = "notifications"
+        const val OUTPUT = "saved"
+    }
+
+    @Input(INPUT)
+    fun notifications(): SubscribableChannel
+
+    @Output(OUTPUT)
+    fun saved(): MessageChannel
 }
 
 @Component
-@EnableBinding(Sink::class)
+@EnableBinding(Sink::class, PostNotifications::class)
 @RestController
-class PostListener(private val feedService: FeedService,
-                   private val connectionsClientService: ConnectionsClientService) {
+class PostListener(private val postBatchWriter: PostBatchWriter,
+                   private val connectionsClientService: ConnectionsClientService,
+                   private val usersClientService: UsersClientService,
+                   private val feedNotifier: FeedNotifier,
+                   private val feedCache: FeedCache,
+                   private val authorPostCache: AuthorPostCache,
+                   private val activeUsers: ActiveUsers,
+                   private val feedWarmer: FeedWarmer,
+                   private val sseConnectionRegistry: SseConnectionRegistry) {
     private val logger = LoggerFactory.getLogger(javaClass)
-    private val emittersByUser: MutableMap<String, CopyOnWriteArraySet<SseEmitter>> = ConcurrentHashMap()
 
     @StreamListener(Sink.INPUT)
     fun onNewPost(post: PostSummary) {
+        // A single instance receives this post, thanks to a consumer group.
         logger.info("Received post {} from {}", post.id, post.author)
-        feedService.savePost(post)
+        // Cached followers are not used for pushing this post, as followers may have changed since then.
+        // If followers are not available, this post is merged into follower feeds at read time.
+        val followers = try {
+            connectionsClientService.fetchCurrentFollowers(post.author)
+        } catch (e: Exception) {
+            logger.warn("Failed to get followers for post {}: not pushing this post", post.id, e)
+            null
+        }
+        postBatchWriter.save(post, followers)
+    }
+
+    @StreamListener(PostNotifications.INPUT)
+    fun onPostNotification(post: PostSummary) {
+        // Every instance receives this post once it is saved, in order to update feed pages
+        // cached by this instance, and to notify users connected to this instance:
+        // feed pages read from now on include this post.
+        authorPostCache.add(post)
+        if (sseConnectionRegistry.size == 0 && feedCache.isEmpty && activeUsers.isEmpty) {
+            return
+        }
 
         // Notify followers there's a new post.
         // We also include post author.
         val followers = mutableListOf(post.author)
         followers.addAll(connectionsClientService.getFollowers(post.author))
-        val event = SseEmitter.event().id(post.id.toString()).data(FeedEvent(id = post.id))
-        val deadEmitters = mutableSetOf<SseEmitter>()
-        followers.forEach { follower ->
-            val emitters = emittersByUser[follower]
-            if (emitters != null) {
-                emitters.forEach { emitter ->
-                    try {
-                        emitter.send(event)
-                    } catch (e: Exception) {
-                        deadEmitters.add(emitter)
-                    }
-                }
-                emitters.removeAll(deadEmitters)
-            }
+        feedCache.invalidateFirstPages(followers)
+        feedWarmer.onNewPost(post, followers)
+        if (sseConnectionRegistry.size == 0) {
+            return
         }
+
+        // Include post in the event if author details are known:
+        // there is no authentication token available here to call yatc-users.
+        val author = usersClientService.getCachedUser(post.author)
+        val newPost = author?.let { Post(post.id, it, post.created, post.content) }
+        followers.forEach { feedNotifier.notify(it, post.id, newPost) }
     }
 
     @GetMapping("/api/v1/feeds/{user}/sse")
-    fun getFeedEvents(@PathVariable("user") @NotBlank user: String): SseEmitter {
-        val emitter = SseEmitter(1000 * 60 * 5L)
-
-        var emitters = emittersByUser[user]
-        if (emitters == null) {
-            emitters = CopyOnWriteArraySet()
+    fun getFeedEvents(@PathVariable("user") @NotBlank user: String, principal: Principal): ResponseEntity<SseEmitter> {
+        // Connections are limited for the authenticated user, rather than for the feed owner:
+        // users cannot prevent others from getting their own feed events.
+        val conn = sseConnectionRegistry.register(user, principal.name)
+        if (conn == null) {
+            logger.warn("Too many SSE connections: rejecting connection from user {}", principal.name)
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build()
         }
-        emitters.add(emitter)
-        emittersByUser.put(user, emitters)
-        emitter.onCompletion { emitters.remove(emitter) }
-        emitter.onTimeout { emitters.remove(emitter) }
-        return emitter
+        activeUsers.onConnect(user)
+        return ResponseEntity.ok(conn.emitter)
     }
 }
 
+/**
+ * Keep track of SSE connections opened on this instance.
+ */
 @Component
-class FeedService(private val feedItemRepo: FeedItemRepository,
-                  private val postsClientService: PostsClientService,
-                  private val connectionsClientService: ConnectionsClientService) {
-    private val logger = LoggerFactory.getLogger(javaClass)
+class SseConnectionRegistry(private val props: AppProperties,
+                            private val sseDispatcher: SseDispatcher) {
+    private val connectionsByUser = ConcurrentHashMap<String, MutableSet<SseConnection>>()
+    private val connectionCountByClient = ConcurrentHashMap<String, Int>()
+    private val connectionCount = AtomicInteger()
 
-    @Transactional
-    fun savePost(post: PostSummary) {
-        var item = feedItemRepo.findByIdOrNull(post.id)
-        if (item == null) {
-            logger.info("Saving post {} to feed: {}", post.id, post.author)
-            item = FeedItem(post.id, post.author, post.created)
-            feedItemRepo.save(item)
-        } else {
-            logger.warn("Post already received: {}", post.id)
+    val size: Int
+        get() = connectionCount.get()
+    val userCount: Int
+        get() = connectionsByUser.size
+
+    /**
+     * Register a new SSE connection to a user feed, opened by an authenticated client,
+     * returning `null` if there are too many connections.
+     */
+    fun register(user: String, client: String): SseConnection? {
+        if (connectionCount.incrementAndGet() > props.sse.maxConnections) {
+            connectionCount.decrementAndGet()
+            return null
         }
+        var allowed = false
+        connectionCountByClient.compute(client) { _, count ->
+            val clientCount = count ?: 0
+            if (clientCount < props.sse.maxConnectionsPerUser) {
+                allowed = true
+                clientCount + 1
+            } else count
+        }
+        if (!allowed) {
+            connectionCount.decrementAndGet()
+            return null
+        }
+        val conn = SseConnection(user, client, SseEmitter(props.sse.timeout.toMillis()), props.sse.queueCapacity)
+        connectionsByUser.compute(user) { _, conns ->
+            (conns ?: ConcurrentHashMap.newKeySet()).also { it.add(conn) }
+        }
+        conn.emitter.onCompletion { unregister(conn) }
+        conn.emitter.onTimeout { unregister(conn) }
+        conn.emitter.onError { unregister(conn) }
+        return conn
     }
 
-    @Transactional(readOnly = true)
-    fun getFeed(user: String, page: Int): Stream<Post> {
-        val authors = connectionsClientService.getFollowings(user).toMutableList()
-        logger.debug("User {} is followed by: {}", user, authors)
+    fun unregister(conn: SseConnection) {
+        var unregistered = false
+        connectionsByUser.computeIfPresent(conn.user) { _, conns ->
+            unregistered = conns.remove(conn)
+            // Do not keep empty sets when users leave.
+            if (conns.isEmpty()) null else conns
+        }
+        if (unregistered) {
+            connectionCountByClient.computeIfPresent(conn.client) { _, count -> if (count <= 1) null else count - 1 }
+            connectionCount.decrementAndGet()
+        }
+    }
 
-        // Also include user's post in feed.
-        authors.add(user)
-        return feedItemRepo.findFromAuthors(authors, PageRequest.of(page, 10))
-                .map { postsClientService.getPost(it.post) }
-                .filter(Objects::nonNull) as Stream<Post>
+    fun getConnections(user: String): Collection<SseConnection> = connectionsByUser[user] ?: emptySet()
+
+    @Scheduled(fixedDelayString = "#{@appProperties.sse.heartbeat.toMillis()}")
+    fun sendHeartbeats() {
+        // Sending a comment to clients is the only way to detect closed connections.
+        connectionsByUser.values.forEach { conns ->
+            conns.forEach { sseDispatcher.send(it, SseEmitter.event().comment("heartbeat")) }
+        }
     }
 }
 
+/**
+ * Notify users about new posts in their feed, merging notifications
+ * received during a short time window into a single event.
+ */
 @Component
-class PostsClientService(private val restTemplate: RestTemplate,
-                         private val usersClientService: UsersClientService) {
-    private val logger = LoggerFactory.getLogger(javaClass)
+class FeedNotifier(private val props: AppProperties,
+                   private val sseConnectionRegistry: SseConnectionRegistry,
+                   private val sseDispatcher: SseDispatcher,
+                   private val taskScheduler: TaskScheduler) {
+    private val pendingEventsByUser = ConcurrentHashMap<String, PendingEvents>()
 
-    fun getPost(postId: Long): Post? =
-            try {
-                logger.debug("Fetching post: {}", postId)
-                val url = "//yatc-posts/api/v1/posts/$postId"
-                val summary = restTemplate.getForObject(url, PostSummary::class.java)!!
-                val author = usersClientService.getUser(summary.author)
-                Post(summary.id, author, summary.created, summary.content)
-            } catch (e: Exception) {
-                logger.warn("Failed to get post: {}", postId, e)
-                null
-            }
+    private class PendingEvents {
+        val ids = mutableListOf<Long>()
+        val posts = mutableListOf<Post>()
+    }
+
+    fun notify(user: String, postId: Long, post: Post?) {
+        if (sseConnectionRegistry.getConnections(user).isEmpty()) {
+            return
+        }
+        val window = props.sse.coalesceWindow
+        if (window.isZero) {
+            send(user, FeedEvent(id = postId, ids = listOf(postId), posts = listOfNotNull(post)))
+            return
+        }
+
+        // The first notification in a time window schedules sending an event:
+        // next notifications are added to this event.
+        var newWindow = false
+        pendingEventsByUser.compute(user) { _, pending ->
+            val events = pending ?: PendingEvents().also { newWindow = true }
+            events.ids.add(postId)
+            post?.let { events.posts.add(it) }
+            events
+        }
+        if (newWindow) {
+            taskScheduler.schedule({ flush(user) }, Date(System.currentTimeMillis() + window.toMillis()))
+        }
+    }
+
+    private fun flush(user: String) {
+        val events = pendingEventsByUser.remove(user) ?: return
+        send(user, FeedEvent(id = events.ids.last(), ids = events.ids, posts = events.posts))
+    }
+
+    private fun send(user: String, event: FeedEvent) {
+        // Events are only queued here: this thread never waits for clients.
+        sseConnectionRegistry.getConnections(user).forEach { conn ->
+            sseDispatcher.send(conn, SseEmitter.event().id(event.id.toString()).data(event))
+        }
+    }
+}
+
+/**
+ * SSE connection, with events waiting to be sent.
+ */
+class SseConnection(val user: String, val client: String, val emitter: SseEmitter, queueCapacity: Int) {
+    val queue: BlockingQueue<SseEmitter.SseEventBuilder> = ArrayBlockingQueue(queueCapacity)
+    val sending = AtomicBoolean()
+    val completed = AtomicBoolean()
+    @Volatile
+    var closed = false
 }
 
+/**
+ * Send events to SSE connections from a dedicated thread pool.
+ * A slow client only delays its own events: its connection is closed
+ * when too many events are waiting to be sent.
+ */
 @Component
-class ConnectionsClientService(private val restTemplate: RestTemplate) {
+class SseDispatcher(private val sseExecutor: ThreadPoolTaskExecutor,
+                    private val sseEvictionsCounter: Counter) {
     private val logger = LoggerFactory.getLogger(javaClass)
 
-    fun getFollowings(user: String) =
-            try {
-                val url = "//yatc-connections/api/v1/connections/$user/followings"
-                val ret = restTemplate.getForObject(url, UserFollowings::class.java) ?: UserFollowings()
-                ret.followings
-            } catch (e: Exception) {
-                logger.warn("Failed to get user followings: {}", user, e)
-                listOf<String>()
-            }
+    fun send(conn: SseConnection, event: SseEmitter.SseEventBuilder) {
+        if (conn.closed) {
+            return
+        }
+        if (!conn.queue.offer(event)) {
+            logger.warn("Closing slow SSE connection from user: {}", conn.user)
+            sseEvictionsCounter.increment()
+            // This emitter is completed by a sending task: completing it from this thread
+            // would wait for the event being sent to this slow client.
+            conn.closed = true
+            conn.queue.clear()
+        }
+        schedule(conn)
+    }
 
-    private data class UserFollowings(
-            val followings: List<String> = listOf()
-    )
+    private fun schedule(conn: SseConnection) {
+        // A single task at most is sending events for a connection.
+        if (conn.sending.compareAndSet(false, true)) {
+            sseExecutor.execute { sendPendingEvents(conn) }
+        }
+    }
 
-    fun getFollowers(user: String) =
-            try {
-                val url = "//yatc-connections/api/v1/connections/$user"
-                val ret = restTemplate.getForObject(url, UserFollowers::class.java) ?: UserFollowers()
-                ret.followers
-            } catch (e: Exception) {
-                logger.warn("Failed to get user followers: {}", user, e)
-                listOf<String>()
+    private fun sendPendingEvents(conn: SseConnection) {
+        var error: Exception? = null
+        try {
+            while (!conn.closed) {
+                val event = conn.queue.poll() ?: break
+                try {
+                    conn.emitter.send(event)
+                } catch (e: Exception) {
+                    logger.debug("Failed to send SSE event to user: {}", conn.user, e)
+                    error = e
+                    conn.closed = true
+                    conn.queue.clear()
+                }
             }
+        } finally {
+            conn.sending.set(false)
+        }
+        if (conn.closed) {
+            complete(conn, error)
+        } else if (conn.queue.isNotEmpty()) {
+            // Some events may have been queued after the last poll.
+            schedule(conn)
+        }
+    }
 
-    private data class UserFollowers(
-            val followers: List<String> = listOf()
-    )
+    private fun complete(conn: SseConnection, e: Exception?) {
+        // A connection closed while a task was starting may be completed by two tasks.
+        if (!conn.completed.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            if (e == null) conn.emitter.complete() else conn.emitter.completeWithError(e)
+        } catch (ignore: Exception) {
+        }
+    }
 }
 
 @Component
-class UsersClientService(private val restTemplate: RestTemplate) {
+class FeedService(private val feedItemRepo: FeedItemRepository,
+                  private val timelineItemRepo: TimelineItemRepository,
+                  private val timelineAuthorRepo: TimelineAuthorRepository,
+                  private val feedAuthorRepo: FeedAuthorRepository,
+                  private val entityManager: EntityManager,
+                  transactionManager: PlatformTransactionManager,
+                  private val props: AppProperties,
+                  private val postsClientService: PostsClientService,
+                  private val usersClientService: UsersClientService,
+                  private val connectionsClientService: ConnectionsClientService,
+                  private val feedCache: FeedCache,
+                  private val authorPostCache: AuthorPostCache,
+                  private val timelinePruner: TimelinePruner,
+                  hydrationExecutor: ThreadPoolTaskExecutor,
+                  feedCacheExecutor: ThreadPoolTaskExecutor,
+                  private val feedHydrationTimer: Timer,
+                  private val feedHydrationTimeoutsCounter: Counter,
+                  private val feedCacheWarmupsCounter: Counter) {
     private val logger = LoggerFactory.getLogger(javaClass)
+    private val pageSize = 10
+    private val feedOrder = compareByDescending<FeedItem> { it.created }.thenByDescending { it.post }
+    // Authentication is forwarded to background threads, as HTTP calls require a token.
+    private val hydrationExecutor = DelegatingSecurityContextExecutor(hydrationExecutor)
+    private val feedCacheTaskExecutor: Executor = feedCacheExecutor
+    private val feedCacheExecutor = DelegatingSecurityContextExecutor(feedCacheExecutor)
+    private val tx = TransactionTemplate(transactionManager)
+    // Authors whose posts may be missing from timelines, for a fan-out threshold:
+    // this list is not read from the database for every feed page.
+    private val mergedAuthors: LoadingCache<Int, Set<String>> = Caffeine.newBuilder()
+            .refreshAfterWrite(props.timeline.mergedAuthorsRefresh.toMillis(), TimeUnit.MILLISECONDS)
+            .build { feedAuthorRepo.findMergedAuthors(it).toSet() }
 
-    fun getUser(user: String): User {
-        logger.debug("Fetch user details: $user")
-        return restTemplate.getForObject("//yatc-users/api/v1/users/$user", User::class.java)
-                ?: throw IllegalArgumentException("User not found: $user")
+    /**
+     * Save received posts, returning posts which were not saved before.
+     */
+    @Transactional
+    fun savePosts(posts: List<NewPost>): List<PostSummary> {
+        // Skip posts already received, using a single query.
+        val existingPosts = feedItemRepo.findExistingPosts(posts.map { it.post.id }).toSet()
+        existingPosts.forEach { logger.warn("Post already received: {}", it) }
+        val newPosts = posts.filter { it.post.id !in existingPosts }.distinctBy { it.post.id }
+        if (newPosts.isEmpty()) {
+            return emptyList()
+        }
+
+        // Inserts are sent to the database as JDBC batches when this transaction is committed.
+        val authors = feedAuthorRepo.findAllById(newPosts.map { it.post.author }.distinct())
+                .associateBy { it.id }.toMutableMap()
+        val skippedAuthors = mutableSetOf<String>()
+        newPosts.forEach { (post, followers) ->
+            logger.info("Saving post {} to feed: {}", post.id, post.author)
+            // Push this post to follower timelines, unless this author has too many followers:
+            // in this case, the post is merged into follower feeds at read time.
+            // This decision is kept with the post, as the number of followers changes over time.
+            val fanOut = followers != null && followers.size <= props.timeline.fanOutThreshold
+            entityManager.persist(FeedItem(post.id, post.author, post.created, post.content, fannedOut = fanOut))
+            val author = authors[post.author]
+            if (author == null) {
+                authors[post.author] = FeedAuthor(post.author, followers?.size ?: 0, !fanOut).also { entityManager.persist(it) }
+            } else {
+                followers?.let { author.followers = it.size }
+                if (!fanOut) {
+                    author.skippedFanOut = true
+                }
+            }
+            if (!fanOut) {
+                skippedAuthors.add(post.author)
+            }
+
+            // Post author always gets the post in its own timeline.
+            val owners = if (fanOut) {
+                (listOf(post.author) + followers!!).distinct()
+            } else {
+                logger.info("Not pushing post {} to {} followers", post.id, followers?.size)
+                listOf(post.author)
+            }
+            owners.forEach { entityManager.persist(TimelineItem(it, post.id, post.created)) }
+            timelinePruner.onTimelinesUpdated(owners)
+        }
+        if (skippedAuthors.isNotEmpty()) {
+            // Posts from these authors are merged into feeds read on this instance right away.
+            mergedAuthors.asMap().replaceAll { _, merged -> merged + skippedAuthors }
+        }
+        return newPosts.map { it.post }
     }
-}
 
-@Configuration
-class AppConfig {
-    @Bean
-    @LoadBalanced
-    fun restTemplate(httpClient: OkHttpClient) =
-            RestTemplate(OkHttp3ClientHttpRequestFactory(httpClient))
+    fun getFeed(user: String, page: Int, before: FeedCursor? = null): FeedResponse =
+            getFeedPage(user, page, before) { false }.feed!!
 
-    @Bean
-    fun authInterceptor() = Interceptor { chain ->
-        val auth = SecurityContextHolder.getContext().authentication
-        if (auth != null && auth.isAuthenticated && auth.credentials != null) {
-            // Forward authentication token to HTTP calls.
-            val newReq = chain.request()
-                    .newBuilder().addHeader(HttpHeaders.AUTHORIZATION, "Bearer ${auth.credentials}")
-                    .build()
-            chain.proceed(newReq)
-        } else {
-            chain.proceed(chain.request())
+    /**
+     * Get a feed page with its ETag, without hydrating posts if this ETag
+     * is not modified: the page is then empty.
+     */
+    fun getFeedPage(user: String, page: Int, before: FeedCursor?, isNotModified: (String) -> Boolean): FeedPage {
+        // Only first pages and pages right after a cursor are cached:
+        // other pages are moving when new posts are received.
+        val key = if (page == 0) FeedPageKey(user, before?.encode()) else null
+        val cached = key?.let { feedCache.get(it) }
+        val feedPage = if (cached == null) loadFeed(user, page, before, key, isNotModified) else {
+            val etag = etagOf(cached.posts.map { it.id })
+            FeedPage(if (isNotModified(etag)) null else cached, etag)
         }
+        feedPage.feed?.next?.let { warmPage(FeedPageKey(user, it)) }
+        return feedPage
     }
 
-    @Bean
-    fun httpClient(authInterceptor: Interceptor): OkHttpClient =
-            // Create an HTTP client with caching support.
-            OkHttpClient.Builder()
-                    .connectTimeout(10, TimeUnit.SECONDS)
-                    .readTimeout(10, TimeUnit.SECONDS)
-                    .addInterceptor(authInterceptor)
-                    .cache(Cache(Files.createTempDirectory("httpcache-").toFile(), 10 * 1024 * 1024))
-                    .build()
+    private fun etagOf(posts: List<Long>) =
+            "W/\"${DigestUtils.md5DigestAsHex(posts.joinToString(",").toByteArray())}\""
 
-    @Bean
-    fun filterRegistrationBean(): FilterRegistrationBean<ShallowEtagHeaderFilter> {
-        val eTagFilter = ShallowEtagHeaderFilter()
-        val registration = FilterRegistrationBean(eTagFilter)
-        registration.addUrlPatterns("/*")
-        return registration
+    fun getCursor(post: Long): FeedCursor? =
+            feedItemRepo.findById(post).map { FeedCursor.of(it) }.orElse(null)
+
+    /**
+     * Get posts more recent than a feed position, or null if there is no new post.
+     * Posts are only hydrated when there are new posts.
+     */
+    fun getFeedSince(user: String, since: FeedCursor): FeedResponse? {
+        val cached = feedCache.get(FeedPageKey(user, null))
+        if (cached != null) {
+            val posts = cached.posts.takeWhile { since.isBefore(it.created, it.id) }
+            return if (posts.isEmpty()) null
+            else FeedResponse(posts, if (posts.size == cached.posts.size) cached.next else null)
+        }
+
+        val items = readItems(user, 0, null).takeWhile { since.isBefore(it.created, it.post) }
+        if (items.isEmpty()) {
+            return null
+        }
+        // A full page means that there may be more new posts: use the cursor to get these posts.
+        val next = if (items.size < pageSize) null else FeedCursor.of(items.last()).encode()
+        return FeedResponse(toPosts(items), next)
     }
+
+    private fun loadFeed(user: String, page: Int, before: FeedCursor?, key: FeedPageKey?,
+                         isNotModified: (String) -> Boolean = { false }): FeedPage {
+        // Feed items are read first, without holding a database connection
+        // while posts are hydrated.
+        // Pages are numbered from the cursor position when a cursor is set.
+        val load = key?.let { feedCache.startLoad(it) }
+        try {
+            val items = readItems(user, page, before)
+            val etag = etagOf(items.map { it.post })
+            if (isNotModified(etag)) {
+                return FeedPage(null, etag)
+            }
+            val next = if (items.size < pageSize) null else FeedCursor.of(items.last()).encode()
+            val posts = toPosts(items)
+            val feed = FeedResponse(posts, next)
+            // Do not cache incomplete pages, nor set an ETag for these pages.
+            if (posts.size != items.size || posts.any { it.author.unknown }) {
+                return FeedPage(feed, null)
+            }
+            load?.let { feedCache.put(it, feed) }
+            return FeedPage(feed, etag)
+        } finally {
+            load?.let { feedCache.endLoad(it) }
+        }
+    }
+
+    private fun warmPage(key: FeedPageKey) {
+        // Load next page in background, as users are likely to request it.
+        if (key.cursor == null || feedCache.contains(key)) {
+            return
+        }
+        loadInCache(key, feedCacheExecutor)
+    }
+
+    /**
+     * Load the first feed page of a user in cache, in background.
+     */
+    fun warmFirstPage(user: String, authentication: Authentication) {
+        val key = FeedPageKey(user, null)
+        if (feedCache.contains(key)) {
+            return
+        }
+        // This page is loaded on behalf of a user who read this feed.
+        // Loads dropped by the executor are not counted.
+        loadInCache(key, DelegatingSecurityContextExecutor(feedCacheTaskExecutor, SecurityContextImpl(authentication))) {
+            feedCacheWarmupsCounter.increment()
+        }
+    }
+
+    private fun loadInCache(key: FeedPageKey, executor: Executor, onLoad: () -> Unit = {}) {
+        executor.execute {
+            try {
+                if (!feedCache.contains(key)) {
+                    onLoad()
+                    loadFeed(key.user, 0, key.cursor?.let { FeedCursor.decode(it) }, key)
+                }
+            } catch (e: Exception) {
+                logger.debug("Failed to load feed page in cache: {}", key, e)
+            }
+        }
+    }
+
+    private fun readItems(user: String, page: Int, before: FeedCursor?): List<FeedItem> {
+        val authors = connectionsClientService.getFollowings(user).toMutableList()
+        logger.debug("User {} is followed by: {}", user, authors)
+
+        // Also include user's post in feed.
+        authors.add(user)
+        if (syncTimeline(user, authors.distinct())) {
+            return readTimeline(user, authors, page, before)
+        }
+        // This user has not received any post since timelines were enabled:
+        // merge posts from followed authors at read time.
+        return findFromAuthors(authors, PageRequest.of(page, pageSize), before)
+    }
+
+    /**
+     * Add posts from newly followed authors to a user timeline, and remove posts
+     * from authors this user does not follow anymore.
+     * Returns false if this user has no timeline.
+     */
+    private fun syncTimeline(user: String, authors: List<String>): Boolean {
+        val timelineAuthors = timelineAuthorRepo.findAuthors(user)
+        if (timelineAuthors.isEmpty() && !timelineItemRepo.existsByOwner(user)) {
+            return false
+        }
+        val added = authors - timelineAuthors
+        val removed = timelineAuthors - authors
+        if (added.isEmpty() && removed.isEmpty()) {
+            return true
+        }
+        // This timeline was created when a first post was pushed to this user:
+        // posts received before are added to this timeline, as well as posts from new followings.
+        logger.debug("Updating timeline {}: adding posts from {}, removing posts from {}", user, added, removed)
+        return try {
+            val removedItems = tx.execute {
+                if (added.isNotEmpty()) {
+                    val bucket = FeedBucket.oldest(props.retention.horizon)
+                    val items = feedItemRepo.findFromAuthors(added, bucket, PageRequest.of(0, props.timeline.maxLength))
+                    val existingPosts = if (items.isEmpty()) emptySet()
+                    else timelineItemRepo.findExistingPosts(user, items.map { it.post }).toSet()
+                    items.filter { it.post !in existingPosts }
+                            .forEach { entityManager.persist(TimelineItem(user, it.post, it.created)) }
+                    added.forEach { entityManager.persist(TimelineAuthor(user, it)) }
+                    timelinePruner.onTimelinesUpdated(listOf(user))
+                }
+                if (removed.isEmpty()) 0 else {
+                    timelineAuthorRepo.deleteAuthors(user, removed)
+                    timelineItemRepo.deleteFromAuthors(user, removed)
+                }
+            }
+            logger.debug("Removed {} posts from timeline: {}", removedItems, user)
+            true
+        } catch (e: Exception) {
+            // This timeline may be updated concurrently: posts are merged at read time for now.
+            logger.debug("Failed to update timeline: {}", user, e)
+            false
+        }
+    }
+
+    private fun findFromAuthors(authors: List<String>, page: Pageable, before: FeedCursor?,
+                                notFannedOut: Boolean = false): List<FeedItem> {
+        // Merge recent posts kept in memory for these authors if possible:
+        // the database is used for older posts.
+        val merged = authorPostCache.merge(authors, before, page.offset.toInt() + page.pageSize) {
+            !notFannedOut || it.fannedOut != true
+        }
+        if (merged != null) {
+            return merged.drop(page.offset.toInt())
+        }
+        val bucket = FeedBucket.oldest(props.retention.horizon)
+        return if (notFannedOut) {
+            if (before == null) feedItemRepo.findNotFannedOutFromAuthors(authors, bucket, page)
+            else feedItemRepo.findNotFannedOutFromAuthorsBefore(authors, bucket, before.created, before.post, page)
+        } else {
+            if (before == null) feedItemRepo.findFromAuthors(authors, bucket, page)
+            else feedItemRepo.findFromAuthorsBefore(authors, bucket, before.created, before.post, page)
+        }
+    }
+
+    /**
+     * Get a feed page, where each post is completed as soon as it is hydrated.
+     */
+    fun streamFeed(user: String, page: Int, before: FeedCursor? = null): FeedStream {
+        val items = readItems(user, page, before)
+        val next = if (items.size < pageSize) null else FeedCursor.of(items.last()).encode()
+        return FeedStream(hydrate(items), next)
+    }
+
+    private fun toPosts(items: List<FeedItem>): List<Post> = feedHydrationTimer.record(Supplier {
+        val deadline = System.nanoTime() + props.hydration.timeout.toNanos()
+        val posts = hydrate(items)
+        val ret = posts.mapNotNull { await(it, deadline) }
+        if (posts.any { !it.isDone }) {
+            logger.warn("Feed hydration timed out: some posts are missing")
+            feedHydrationTimeoutsCounter.increment()
+        }
+        ret
+    })
+
+    private fun hydrate(items: List<FeedItem>): List<CompletableFuture<Post?>> {
+        // Calls rejected by the hydration pool are handled as timed out calls.
+        var rejected = false
+        fun <T> supply(call: () -> T): CompletableFuture<T?> =
+                try {
+                    CompletableFuture.supplyAsync(Supplier<T?> { call() }, hydrationExecutor)
+                } catch (e: RejectedExecutionException) {
+                    rejected = true
+                    CompletableFuture.completedFuture(null)
+                }
+
+        // Fetch missing post contents with a single call.
+        val missingPosts = items.filter { it.content == null }.map { it.post }
+        val contentsFuture = if (missingPosts.isEmpty()) CompletableFuture.completedFuture(emptyMap())
+        else supply { postsClientService.getPosts(missingPosts).associate { it.id to it.content } }
+
+        // Fetch each author only once, even if there are many posts from the same author.
+        // There is one call per author, as yatc-users has no multi-get endpoint: users are read
+        // one at a time from GitHub anyway, and cached authors do not require any call.
+        val authorFutures = items.map { it.author }.distinct().associate { author ->
+            author to supply { usersClientService.getUser(author) }
+        }
+
+        val posts = items.map { item ->
+            val contentFuture = if (item.content != null) CompletableFuture.completedFuture(item.content)
+            else contentsFuture.thenApply { it?.get(item.post) }
+            contentFuture.thenCombine(authorFutures.getValue(item.author)) { content, author ->
+                if (content == null || author == null) null else Post(item.post, author, item.created, content)
+            }
+        }
+        if (rejected) {
+            logger.warn("Hydration pool is full: some posts are missing")
+            feedHydrationTimeoutsCounter.increment()
+        }
+        return posts
+    }
+
+    private fun <T> await(future: CompletableFuture<T>, deadline: Long): T? =
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+            } catch (e: TimeoutException) {
+                null
+            } catch (e: ExecutionException) {
+                logger.warn("Failed to hydrate feed", e.cause)
+                null
+            }
+
+    private fun readTimeline(user: String, authors: List<String>, page: Int, before: FeedCursor?): List<FeedItem> {
+        // Fetch enough items from every source to build the requested page.
+        val limit = PageRequest.of(0, (page + 1) * pageSize)
+        // Only read buckets within the retention horizon.
+        val bucket = FeedBucket.oldest(props.retention.horizon)
+        val timeline = if (before == null) timelineItemRepo.findTimeline(user, bucket, limit)
+        else timelineItemRepo.findTimelineBefore(user, bucket, before.created, before.post, limit)
+        if (timeline.size < limit.pageSize) {
+            // Older posts were removed from this timeline, or this timeline is being updated:
+            // merge posts from followed authors at read time.
+            return (timeline + findFromAuthors(authors, limit, before))
+                    .distinctBy { it.post }.sortedWith(feedOrder).drop(page * pageSize).take(pageSize)
+        }
+
+        // Posts from authors with many followers are not in the timeline.
+        val merged = mergedAuthors.get(props.timeline.fanOutThreshold)!!
+        if (merged.isEmpty()) {
+            return timeline.drop(page * pageSize)
+        }
+        val mergedFollowings = authors.filter { it in merged }
+        if (mergedFollowings.isEmpty()) {
+            return timeline.drop(page * pageSize)
+        }
+        // Only posts which were not pushed to timelines are merged:
+        // posts received before this was recorded may be found in both sources.
+        logger.debug("Merging posts from {} into user feed: {}", mergedFollowings, user)
+        return (timeline + findFromAuthors(mergedFollowings, limit, before, notFannedOut = true))
+                .distinctBy { it.post }.sortedWith(feedOrder).drop(page * pageSize).take(pageSize)
+    }
+}
+
+data class NewPost(
+        val post: PostSummary,
+        // Followers are null when these are not available.
+        val followers: List<String>?
+)
+
+/**
+ * Save received posts in batches: posts received by listener threads while
+ * a batch is being saved are saved together in the next transaction.
+ * Listener threads wait until their post is saved, so that messages are
+ * acknowledged once posts are stored.
+ * Saved posts are then announced to every instance.
+ */
+@Component
+class PostBatchWriter(private val feedService: FeedService,
+                      private val postNotifications: PostNotifications,
+                      private val props: AppProperties,
+                      private val feedIngestBatchSummary: DistributionSummary,
+                      private val feedIngestWriteTimer: Timer,
+                      private val feedIngestLagTimer: Timer) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val queue = LinkedBlockingQueue<PendingPost>()
+    // Posts waiting in listener threads, including posts in the batch being saved.
+    private val pending = ConcurrentHashMap.newKeySet<PendingPost>()
+    private val writer = Thread({ writePosts() }, "post-writer")
+    @Volatile
+    private var running = true
+    // Moving average of the time spent saving a batch, in nanoseconds.
+    @Volatile
+    private var averageWriteNanos: Long = -1
+
+    val queueSize: Int
+        get() = queue.size
+
+    /**
+     * Time spent by the oldest pending post waiting to be saved.
+     */
+    val oldestPendingWait: Duration?
+        get() = pending.map { it.enqueued }.min()?.let { Duration.ofNanos(System.nanoTime() - it) }
+
+    /**
+     * Average time spent saving a batch, since this value was last reset.
+     */
+    val writeLatency: Duration?
+        get() = averageWriteNanos.let { if (it < 0) null else Duration.ofNanos(it) }
+
+    fun resetWriteLatency() {
+        averageWriteNanos = -1
+    }
+
+    private class PendingPost(val post: NewPost) {
+        val saved = CompletableFuture<Boolean>()
+        val enqueued = System.nanoTime()
+    }
+
+    @PostConstruct
+    fun start() = writer.start()
+
+    @PreDestroy
+    fun stop() {
+        running = false
+        writer.interrupt()
+    }
+
+    fun save(post: PostSummary, followers: List<String>?) {
+        if (!running) {
+            throw IllegalStateException("Post writer is stopped")
+        }
+        val pendingPost = PendingPost(NewPost(post, followers))
+        pending.add(pendingPost)
+        try {
+            queue.put(pendingPost)
+            pendingPost.saved.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        } finally {
+            pending.remove(pendingPost)
+        }
+    }
+
+    private fun writePosts() {
+        while (running) {
+            val batch = mutableListOf<PendingPost>()
+            try {
+                batch.add(queue.take())
+            } catch (e: InterruptedException) {
+                break
+            }
+            queue.drainTo(batch, props.ingest.batchSize - 1)
+            feedIngestBatchSummary.record(batch.size.toDouble())
+            write(batch)
+        }
+        // Pending posts are not saved: these messages will be received again.
+        generateSequence { queue.poll() }.forEach {
+            it.saved.completeExceptionally(IllegalStateException("Post writer is stopped"))
+        }
+    }
+
+    private fun write(batch: List<PendingPost>) {
+        val start = System.nanoTime()
+        try {
+            val saved = feedService.savePosts(batch.map { it.post })
+            notifySaved(saved)
+            batch.forEach { it.saved.complete(true) }
+            val elapsed = System.nanoTime() - start
+            feedIngestWriteTimer.record(elapsed, TimeUnit.NANOSECONDS)
+            averageWriteNanos = averageWriteNanos.let { if (it < 0) elapsed else (it * 3 + elapsed) / 4 }
+
+            // Consumer lag is the time between post creation and post storage.
+            val now = OffsetDateTime.now()
+            batch.forEach { feedIngestLagTimer.record(Duration.between(it.post.post.created, now)) }
+        } catch (e: Exception) {
+            // Save posts one at a time, so that a single post cannot fail the whole batch.
+            logger.warn("Failed to save {} posts: saving posts one at a time", batch.size, e)
+            batch.forEach {
+                try {
+                    val saved = feedService.savePosts(listOf(it.post))
+                    notifySaved(saved)
+                    it.saved.complete(true)
+                } catch (e: Exception) {
+                    it.saved.completeExceptionally(e)
+                }
+            }
+        }
+    }
+
+    private fun notifySaved(posts: List<PostSummary>) {
+        // These posts are committed: cached feed pages are updated by every instance.
+        posts.forEach {
+            try {
+                postNotifications.saved().send(MessageBuilder.withPayload(it).build())
+            } catch (e: Exception) {
+                logger.warn("Failed to send notification for post {}", it.id, e)
+            }
+        }
+    }
+}
+
+/**
+ * Pause the post consumer when posts cannot be saved fast enough,
+ * so that pending posts are kept by the broker rather than in memory.
+ */
+@Component
+class PostConsumerControl(private val bindingsEndpoint: BindingsEndpoint,
+                          private val postBatchWriter: PostBatchWriter,
+                          private val props: AppProperties,
+                          private val feedIngestPauseTimer: Timer) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private var pausedAt: Long = 0
+    // Number of pauses since posts were last saved in time.
+    private var pauses = 0
+    @Volatile
+    private var paused = false
+
+    val isPaused: Boolean
+        get() = paused
+
+    private val pauseDuration: Duration
+        get() = minOf(props.ingest.minPause.multipliedBy(1L shl minOf(pauses, 16)), props.ingest.maxPause)
+
+    @Scheduled(fixedDelayString = "#{@appProperties.ingest.checkDelay.toMillis()}")
+    @Synchronized
+    fun check() {
+        if (isPaused) {
+            val elapsed = System.nanoTime() - pausedAt
+            if (elapsed >= pauseDuration.toNanos()) {
+                resume(elapsed)
+            }
+            return
+        }
+
+        // Every listener thread may be waiting for its post under ordinary load:
+        // posts are only late when these are waiting longer than the maximum write latency.
+        val latency = postBatchWriter.writeLatency
+        val wait = postBatchWriter.oldestPendingWait
+        if ((latency != null && latency > props.ingest.maxWriteLatency)
+                || (wait != null && wait > props.ingest.maxWriteLatency)) {
+            pause(latency, wait)
+        } else if (latency != null) {
+            // Posts are saved in time since the consumer was resumed.
+            pauses = 0
+        }
+    }
+
+    private fun pause(latency: Duration?, wait: Duration?) {
+        logger.warn("Pausing post consumer for {}: write latency is {}, oldest post is waiting for {}",
+                pauseDuration, latency, wait)
+        bindingsEndpoint.changeState(Sink.INPUT, BindingsEndpoint.State.STOPPED)
+        pausedAt = System.nanoTime()
+        paused = true
+    }
+
+    private fun resume(elapsed: Long) {
+        logger.info("Resuming post consumer")
+        // Write latency is measured again using posts received from now on:
+        // next pause is longer if posts are still saved too slowly.
+        postBatchWriter.resetWriteLatency()
+        bindingsEndpoint.changeState(Sink.INPUT, BindingsEndpoint.State.STARTED)
+        paused = false
+        feedIngestPauseTimer.record(elapsed, TimeUnit.NANOSECONDS)
+        pauses += 1
+    }
+}
+
+data class FeedPageKey(
+        val user: String,
+        val cursor: String?
+)
+
+/**
+ * Keep assembled feed pages in memory.
+ */
+@Component
+class FeedCache(props: AppProperties,
+                registry: MeterRegistry,
+                private val feedCacheInvalidationsCounter: Counter) {
+    private val pages: Cache<FeedPageKey, FeedResponse> = Caffeine.newBuilder()
+            .maximumSize(props.cache.maxPages)
+            .expireAfterWrite(props.cache.ttl.toMillis(), TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build()
+    private val loads: MutableSet<PageLoad> = ConcurrentHashMap.newKeySet()
+
+    init {
+        CaffeineCacheMetrics.monitor(registry, pages, "feeds")
+    }
+
+    val isEmpty: Boolean
+        get() = pages.estimatedSize() == 0L
+
+    fun get(key: FeedPageKey): FeedResponse? = pages.getIfPresent(key)
+
+    fun contains(key: FeedPageKey) = pages.asMap().containsKey(key)
+
+    /**
+     * Start reading a page from the database: this page is only cached
+     * if it is not invalidated while it is read.
+     */
+    fun startLoad(key: FeedPageKey) = PageLoad(key).also { loads.add(it) }
+
+    fun endLoad(load: PageLoad) = loads.remove(load)
+
+    fun put(load: PageLoad, feed: FeedResponse) {
+        pages.asMap().compute(load.key) { _, cached -> if (load.stale) cached else feed }
+    }
+
+    /**
+     * Remove first feed pages for these users.
+     * Pages following a cursor are kept, as new posts only show up in first pages.
+     */
+    fun invalidateFirstPages(users: Collection<String>) {
+        val userSet = users.toSet()
+        // First pages being read may miss a new post: these pages are not cached.
+        loads.filter { it.key.cursor == null && it.key.user in userSet }.forEach { it.stale = true }
+
+        // Only look at cached pages when there are fewer pages than users.
+        val keys = if (userSet.size > pages.estimatedSize()) {
+            pages.asMap().keys.filter { it.cursor == null && it.user in userSet }
+        } else {
+            userSet.map { FeedPageKey(it, null) }
+        }
+        val invalidated = keys.count { pages.asMap().remove(it) != null }
+        feedCacheInvalidationsCounter.increment(invalidated.toDouble())
+    }
+
+    class PageLoad(val key: FeedPageKey) {
+        @Volatile
+        var stale = false
+    }
+}
+
+/**
+ * Keep the most recent posts from authors whose posts are read, so that
+ * posts from many authors are merged without sorting these posts in the database.
+ */
+@Component
+class AuthorPostCache(private val feedItemRepo: FeedItemRepository,
+                      private val props: AppProperties,
+                      registry: MeterRegistry,
+                      private val feedCacheExecutor: ThreadPoolTaskExecutor) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val feedOrder = compareByDescending<FeedItem> { it.created }.thenByDescending { it.post }
+    // Posts are replaced when a new post is received, rather than updated:
+    // refreshed posts are discarded if a post was received meanwhile.
+    private val rings: LoadingCache<String, AuthorPosts> = Caffeine.newBuilder()
+            .maximumSize(props.authors.cacheSize)
+            .expireAfterAccess(props.authors.cacheTtl.toMillis(), TimeUnit.MILLISECONDS)
+            .refreshAfterWrite(props.authors.cacheRefresh.toMillis(), TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build<String, AuthorPosts> { load(it) }
+
+    init {
+        CaffeineCacheMetrics.monitor(registry, rings, "authors")
+    }
+
+    /**
+     * Recent posts from an author, from the most recent post.
+     * This list holds every post from this author within the retention horizon when complete.
+     */
+    private data class AuthorPosts(
+            val posts: List<FeedItem>,
+            val complete: Boolean
+    )
+
+    private fun load(author: String): AuthorPosts {
+        val ringSize = props.authors.ringSize
+        val bucket = FeedBucket.oldest(props.retention.horizon)
+        val posts = feedItemRepo.findFromAuthors(listOf(author), bucket, PageRequest.of(0, ringSize + 1))
+        return AuthorPosts(posts.take(ringSize), posts.size <= ringSize)
+    }
+
+    /**
+     * Add a new post to recent posts, if posts from this author are kept in memory.
+     */
+    fun add(post: PostSummary) {
+        val item = FeedItem(post.id, post.author, post.created, post.content)
+        rings.asMap().computeIfPresent(post.author) { _, ring ->
+            if (ring.posts.any { it.post == post.id }) ring
+            else {
+                val posts = (ring.posts + item).sortedWith(feedOrder)
+                AuthorPosts(posts.take(props.authors.ringSize), ring.complete && posts.size <= props.authors.ringSize)
+            }
+        }
+    }
+
+    /**
+     * Merge recent posts from these authors matching a filter, following a feed position.
+     * Returns null if recent posts are not enough to get these posts:
+     * missing authors are then loaded in background.
+     */
+    fun merge(authors: Collection<String>, before: FeedCursor?, limit: Int,
+              filter: (FeedItem) -> Boolean = { true }): List<FeedItem>? {
+        val authorSet = authors.toSet()
+        val found = rings.getAllPresent(authorSet)
+        if (found.size < authorSet.size) {
+            val missing = authorSet - found.keys
+            logger.debug("Loading recent posts from {} authors", missing.size)
+            feedCacheExecutor.execute {
+                try {
+                    rings.getAll(missing)
+                } catch (e: Exception) {
+                    logger.warn("Failed to load recent posts from authors", e)
+                }
+            }
+            return null
+        }
+
+        // Posts are merged using a heap holding the next post from each author.
+        val oldestBucket = FeedBucket.oldest(props.retention.horizon)
+        val heads = PriorityQueue<RingCursor>(compareBy(feedOrder) { it.head })
+        for (ring in found.values) {
+            val start = ring.posts.indexOfFirst { before == null || before.isAfter(it.created, it.post) }
+            if (start != -1) {
+                heads.add(RingCursor(ring, start))
+            } else if (!ring.complete) {
+                // Posts following this position are not in memory.
+                return null
+            }
+        }
+        val ret = mutableListOf<FeedItem>()
+        while (ret.size < limit) {
+            val cursor = heads.poll() ?: break
+            val item = cursor.head
+            if ((item.bucket ?: oldestBucket) < oldestBucket) {
+                // Posts are not merged beyond the retention horizon.
+                continue
+            }
+            if (filter(item)) {
+                ret.add(item)
+            }
+            if (cursor.index + 1 < cursor.ring.posts.size) {
+                heads.add(RingCursor(cursor.ring, cursor.index + 1))
+            } else if (!cursor.ring.complete && ret.size < limit) {
+                // Next posts from this author are not in memory.
+                return null
+            }
+        }
+        return ret
+    }
+
+    private class RingCursor(val ring: AuthorPosts, val index: Int) {
+        val head: FeedItem
+            get() = ring.posts[index]
+    }
+}
+
+/**
+ * Keep track of users whose feed was recently read on this instance.
+ */
+@Component
+class ActiveUsers(props: AppProperties) {
+    // Users are evicted when no activity is seen during the activity window.
+    // Authentication is kept for loading feed pages on behalf of these users.
+    private val users: Cache<String, Authentication> = Caffeine.newBuilder()
+            .maximumSize(props.activity.maxUsers)
+            .expireAfterWrite(props.activity.window.toMillis(), TimeUnit.MILLISECONDS)
+            .build()
+
+    val size: Long
+        get() = users.estimatedSize()
+
+    val isEmpty: Boolean
+        get() = size == 0L
+
+    fun onFeedRead(user: String) {
+        // Only users reading their own feed are tracked: pages are loaded with their own token.
+        SecurityContextHolder.getContext().authentication?.takeIf { it.name == user }?.let { users.put(user, it) }
+    }
+
+    fun onConnect(user: String) {
+        // Users connected to their own feed events are active as well.
+        onFeedRead(user)
+    }
+
+    fun getAuthentication(user: String): Authentication? = users.getIfPresent(user)
+}
+
+/**
+ * Load first feed pages in cache for active users when new posts are saved,
+ * so that these users get a warm page on their next read.
+ */
+@Component
+class FeedWarmer(private val feedService: FeedService,
+                 private val activeUsers: ActiveUsers) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    fun onNewPost(post: PostSummary, followers: Collection<String>) {
+        val users = followers.mapNotNull { user -> activeUsers.getAuthentication(user)?.let { user to it } }
+        if (users.isEmpty()) {
+            return
+        }
+        // This post is committed: pages are loaded in background, including this post.
+        logger.debug("Loading feed pages for {} active users", users.size)
+        users.forEach { (user, authentication) -> feedService.warmFirstPage(user, authentication) }
+    }
+}
+
+data class FeedPage(
+        val feed: FeedResponse?,
+        val etag: String?
+)
+
+data class FeedStream(
+        val posts: List<CompletableFuture<Post?>>,
+        val next: String?
+)
+
+/**
+ * Trim timelines updated on this instance to their maximum length.
+ */
+@Component
+class TimelinePruner(private val timelineItemRepo: TimelineItemRepository,
+                     private val props: AppProperties,
+                     transactionManager: PlatformTransactionManager) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val tx = TransactionTemplate(transactionManager)
+    // Owners of timelines which may have grown since these were last trimmed.
+    private val updatedOwners = ConcurrentHashMap.newKeySet<String>()
+
+    fun onTimelinesUpdated(owners: Collection<String>) {
+        updatedOwners.addAll(owners)
+    }
+
+    @Scheduled(fixedDelayString = "#{@appProperties.timeline.pruneDelay.toMillis()}")
+    fun pruneTimelines() {
+        val maxLength = props.timeline.maxLength
+        val owners = updatedOwners.toList()
+        updatedOwners.removeAll(owners)
+        owners.forEach { owner ->
+            // Only keep the most recent posts in this timeline.
+            // Each timeline is trimmed in its own transaction.
+            try {
+                val deleted = tx.execute {
+                    val oldest = timelineItemRepo.findCreated(owner, PageRequest.of(maxLength - 1, 1)).firstOrNull()
+                    if (oldest == null) 0 else timelineItemRepo.deleteOlderThan(owner, oldest)
+                }
+                logger.debug("Removed {} posts from timeline: {}", deleted, owner)
+            } catch (e: Exception) {
+                logger.warn("Failed to prune timeline: {}", owner, e)
+                updatedOwners.add(owner)
+            }
+        }
+    }
+}
+
+/**
+ * Remove feed items older than the retention horizon, a bucket at a time.
+ */
+@Component
+class FeedPruner(private val feedItemRepo: FeedItemRepository,
+                 private val timelineItemRepo: TimelineItemRepository,
+                 private val props: AppProperties,
+                 transactionManager: PlatformTransactionManager,
+                 private val feedPrunedItemsCounter: Counter,
+                 private val feedPrunedBucketsCounter: Counter) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val tx = TransactionTemplate(transactionManager)
+    private val backfillSize = 1000
+
+    @Scheduled(fixedDelayString = "#{@appProperties.retention.pruneDelay.toMillis()}")
+    fun pruneFeeds() {
+        assignBuckets()
+
+        val oldest = FeedBucket.oldest(props.retention.horizon)
+        val buckets = (feedItemRepo.findBucketsBefore(oldest) + timelineItemRepo.findBucketsBefore(oldest))
+                .distinct().sorted()
+        if (buckets.isEmpty()) {
+            return
+        }
+        var items = 0
+        buckets.forEach { bucket ->
+            // Each bucket is removed in its own transaction.
+            val timelineItems = timelineItemRepo.deleteBucket(bucket)
+            val feedItems = feedItemRepo.deleteBucket(bucket)
+            logger.debug("Removed bucket {}: {} feed items, {} timeline items", bucket, feedItems, timelineItems)
+            items += feedItems + timelineItems
+        }
+        logger.info("Removed {} items from {} buckets older than {}", items, buckets.size, props.retention.horizon)
+        feedPrunedItemsCounter.increment(items.toDouble())
+        feedPrunedBucketsCounter.increment(buckets.size.toDouble())
+    }
+
+    private fun assignBuckets() {
+        // Items saved before buckets were introduced are assigned to a bucket
+        // by this job, so that these items can be read and removed.
+        var count = 0
+        do {
+            val updated = tx.execute {
+                val items = feedItemRepo.findWithoutBucket(PageRequest.of(0, backfillSize))
+                items.forEach { it.bucket = FeedBucket.of(it.created) }
+                val timelineItems = timelineItemRepo.findWithoutBucket(PageRequest.of(0, backfillSize))
+                timelineItems.forEach { it.bucket = FeedBucket.of(it.created) }
+                items.size + timelineItems.size
+            } ?: 0
+            count += updated
+        } while (updated > 0)
+        if (count != 0) {
+            logger.info("Assigned {} feed items to buckets", count)
+        }
+    }
+}
+
+/**
+ * Limit concurrent calls to a downstream service, so that a slow service
+ * cannot hold on to every thread: calls are rejected when this limit is reached.
+ */
+class Bulkhead(private val name: String,
+               private val props: AppProperties.Downstream) : MeterBinder {
+    private val permits = Semaphore(props.maxConcurrentCalls)
+    private val rejections = AtomicLong()
+
+    val activeCalls: Int
+        get() = props.maxConcurrentCalls - permits.availablePermits()
+
+    fun <T> call(action: () -> T): T {
+        if (!permits.tryAcquire(props.maxWait.toMillis(), TimeUnit.MILLISECONDS)) {
+            rejections.incrementAndGet()
+            throw RejectedExecutionException("Too many concurrent calls to $name")
+        }
+        try {
+            return action()
+        } finally {
+            permits.release()
+        }
+    }
+
+    override fun bindTo(registry: MeterRegistry) {
+        Gauge.builder("feed_downstream_active", this) { it.activeCalls.toDouble() }
+                .tag("downstream", name).register(registry)
+        Gauge.builder("feed_downstream_saturation", this) { it.activeCalls.toDouble() / props.maxConcurrentCalls }
+                .tag("downstream", name).register(registry)
+        FunctionCounter.builder("feed_downstream_rejections", rejections) { it.toDouble() }
+                .tag("downstream", name).register(registry)
+    }
+}
+
+@Component
+class PostsClientService(private val postsRestTemplate: RestTemplate,
+                         private val postsBulkhead: Bulkhead) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    fun getPosts(postIds: List<Long>) =
+            try {
+                logger.debug("Fetching posts: {}", postIds)
+                val url = "//yatc-posts/api/v1/posts?ids=${postIds.joinToString(",")}"
+                val ret = postsBulkhead.call { postsRestTemplate.getForObject(url, PostBatch::class.java) } ?: PostBatch()
+                ret.posts
+            } catch (e: Exception) {
+                logger.warn("Failed to get posts: {}", postIds, e)
+                listOf<PostSummary>()
+            }
+
+    private data class PostBatch(
+            val posts: List<PostSummary> = listOf()
+    )
+}
+
+@Component
+class ConnectionsClientService(private val connectionsRestTemplate: RestTemplate,
+                               private val connectionsBulkhead: Bulkhead,
+                               props: AppProperties,
+                               registry: MeterRegistry) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    // Connections are cached as arrays of interned strings, since the same
+    // user ids show up in many lists.
+    // Failed refreshes keep cached lists, which are used until they expire.
+    private val followings = newCache(props, registry, "followings") { fetchFollowings(it) }
+    private val followers = newCache(props, registry, "followers") { fetchFollowers(it) }
+
+    private fun newCache(props: AppProperties, registry: MeterRegistry, name: String,
+                         loader: (String) -> Array<String>): LoadingCache<String, Array<String>> {
+        val cache = Caffeine.newBuilder()
+                .maximumWeight(props.connections.cacheMaxIds)
+                .weigher { _: String, users: Array<String> -> users.size + 1 }
+                .refreshAfterWrite(props.connections.cacheRefresh.toMillis(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(props.connections.cacheTtl.toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build<String, Array<String>> { loader(it) }
+        CaffeineCacheMetrics.monitor(registry, cache, name)
+        return cache
+    }
+
+    fun getFollowings(user: String) =
+            try {
+                followings.get(user)!!.asList()
+            } catch (e: Exception) {
+                logger.warn("Failed to get user followings: {}", user, e)
+                listOf<String>()
+            }
+
+    private fun fetchFollowings(user: String): Array<String> {
+        val url = "//yatc-connections/api/v1/connections/$user/followings"
+        val ret = connectionsBulkhead.call { connectionsRestTemplate.getForObject(url, UserFollowings::class.java) }
+                ?: UserFollowings()
+        return ret.followings.map { it.intern() }.toTypedArray()
+    }
+
+    private data class UserFollowings(
+            val followings: List<String> = listOf()
+    )
+
+    fun getFollowers(user: String) =
+            try {
+                followers.get(user)!!.asList()
+            } catch (e: Exception) {
+                logger.warn("Failed to get user followers: {}", user, e)
+                listOf<String>()
+            }
+
+    /**
+     * Get followers from yatc-connections, bypassing the cache which is updated with these followers.
+     * Throws an exception if followers are not available.
+     */
+    fun fetchCurrentFollowers(user: String): List<String> =
+            fetchFollowers(user).also { followers.put(user, it) }.asList()
+
+    private fun fetchFollowers(user: String): Array<String> {
+        val url = "//yatc-connections/api/v1/connections/$user"
+        val ret = connectionsBulkhead.call { connectionsRestTemplate.getForObject(url, UserFollowers::class.java) }
+                ?: UserFollowers()
+        return ret.followers.map { it.intern() }.toTypedArray()
+    }
+
+    private data class UserFollowers(
+            val followers: List<String> = listOf()
+    )
+}
+
+@Component
+class UsersClientService(private val usersRestTemplate: RestTemplate,
+                         private val usersBulkhead: Bulkhead,
+                         props: AppProperties,
+                         registry: MeterRegistry) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    // Keep user profiles in memory, as the same authors show up in many feeds.
+    // Concurrent requests for the same user are sent only once.
+    private val users: LoadingCache<String, User> = Caffeine.newBuilder()
+            .maximumSize(props.users.cacheSize)
+            .expireAfterWrite(props.users.cacheTtl.toMillis(), TimeUnit.MILLISECONDS)
+            .refreshAfterWrite(props.users.cacheRefresh.toMillis(), TimeUnit.MILLISECONDS)
+            // Authentication is forwarded to refresh threads, as HTTP calls require a token.
+            .executor(DelegatingSecurityContextExecutor(ForkJoinPool.commonPool()))
+            .recordStats()
+            .build { fetchUser(it) }
+
+    init {
+        CaffeineCacheMetrics.monitor(registry, users, "users")
+    }
+
+    fun getUser(user: String): User =
+            try {
+                users.get(user)!!
+            } catch (e: Exception) {
+                // Do not leave posts out of feeds when user details are not available:
+                // this value is not cached, and feed pages showing this user are not cached either.
+                logger.warn("Failed to get user: {}", user, e)
+                User.unknown(user)
+            }
+
+    fun getCachedUser(user: String): User? = users.getIfPresent(user)
+
+    private fun fetchUser(user: String): User {
+        logger.debug("Fetch user details: $user")
+        return usersBulkhead.call { usersRestTemplate.getForObject("//yatc-users/api/v1/users/$user", User::class.java) }
+                ?: throw IllegalArgumentException("User not found: $user")
+    }
+}
+
+@Configuration
+class AppConfig {
+    // Each downstream service gets its own timeouts and concurrency limits,
+    // so that a slow service only degrades features using this service.
+    @Bean
+    @LoadBalanced
+    fun postsRestTemplate(httpClient: OkHttpClient, props: AppProperties) =
+            restTemplate(httpClient, props.clients.posts)
+
+    @Bean
+    @LoadBalanced
+    fun usersRestTemplate(httpClient: OkHttpClient, props: AppProperties) =
+            restTemplate(httpClient, props.clients.users)
+
+    @Bean
+    @LoadBalanced
+    fun connectionsRestTemplate(httpClient: OkHttpClient, props: AppProperties) =
+            restTemplate(httpClient, props.clients.connections)
+
+    private fun restTemplate(httpClient: OkHttpClient, props: AppProperties.Downstream) =
+            RestTemplate(OkHttp3ClientHttpRequestFactory(httpClient.newBuilder()
+                    .connectTimeout(props.timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .readTimeout(props.timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .build()))
+
+    @Bean
+    fun postsBulkhead(props: AppProperties) = Bulkhead("posts", props.clients.posts)
+
+    @Bean
+    fun usersBulkhead(props: AppProperties) = Bulkhead("users", props.clients.users)
+
+    @Bean
+    fun connectionsBulkhead(props: AppProperties) = Bulkhead("connections", props.clients.connections)
+
+    @Bean
+    fun hydrationExecutor(props: AppProperties): ThreadPoolTaskExecutor {
+        // Use a dedicated thread pool to hydrate feeds, so that remote calls
+        // cannot exhaust request threads.
+        val executor = ThreadPoolTaskExecutor()
+        executor.corePoolSize = props.hydration.poolSize
+        executor.maxPoolSize = props.hydration.poolSize
+        executor.setQueueCapacity(props.hydration.queueCapacity)
+        executor.setThreadNamePrefix("hydration-")
+        // Reject tasks when this pool is full: posts are then left out of feed pages,
+        // rather than hydrated from request threads.
+        executor.setRejectedExecutionHandler(ThreadPoolExecutor.AbortPolicy())
+        return executor
+    }
+
+    @Bean
+    fun feedCacheExecutor(): ThreadPoolTaskExecutor {
+        // Loading pages in cache is optional: drop tasks when this pool is full.
+        val executor = ThreadPoolTaskExecutor()
+        executor.corePoolSize = 2
+        executor.maxPoolSize = 2
+        executor.setQueueCapacity(100)
+        executor.setThreadNamePrefix("feed-cache-")
+        executor.setRejectedExecutionHandler(ThreadPoolExecutor.DiscardPolicy())
+        return executor
+    }
+
+    @Bean
+    fun feedStreamExecutor(props: AppProperties): ThreadPoolTaskExecutor {
+        // Posts which cannot be written to streaming responses are left out.
+        val executor = ThreadPoolTaskExecutor()
+        executor.corePoolSize = props.stream.poolSize
+        executor.maxPoolSize = props.stream.poolSize
+        executor.setQueueCapacity(props.stream.queueCapacity)
+        executor.setThreadNamePrefix("feed-stream-")
+        return executor
+    }
+
+    @Bean
+    fun sseExecutor(props: AppProperties): ThreadPoolTaskExecutor {
+        // There is at most one task per SSE connection in this pool queue.
+        val executor = ThreadPoolTaskExecutor()
+        executor.corePoolSize = props.sse.poolSize
+        executor.maxPoolSize = props.sse.poolSize
+        executor.setThreadNamePrefix("sse-")
+        return executor
+    }
+
+    @Bean
+    fun authInterceptor() = Interceptor { chain ->
+        val auth = SecurityContextHolder.getContext().authentication
+        if (auth != null && auth.isAuthenticated && auth.credentials != null) {
+            // Forward authentication token to HTTP calls.
+            val newReq = chain.request()
+                    .newBuilder().addHeader(HttpHeaders.AUTHORIZATION, "Bearer ${auth.credentials}")
+                    .build()
+            chain.proceed(newReq)
+        } else {
+            chain.proceed(chain.request())
+        }
+    }
+
+    @Bean
+    fun httpClient(authInterceptor: Interceptor): OkHttpClient =
+            // Create an HTTP client with caching support.
+            OkHttpClient.Builder()
+                    .connectTimeout(10, TimeUnit.SECONDS)
+                    .readTimeout(10, TimeUnit.SECONDS)
+                    .addInterceptor(authInterceptor)
+                    .cache(okhttp3.Cache(Files.createTempDirectory("httpcache-").toFile(), 10 * 1024 * 1024))
+                    .build()
+}
+
+@Configuration
+class MetricsConfig {
+    // Define custom app metrics to track feed hydration, feed events, feed cache and post ingestion.
+
+    @Bean
+    fun feedHydrationTimer(registry: MeterRegistry) =
+            registry.timer("feed_hydration")
+
+    @Bean
+    fun feedHydrationTimeoutsCounter(registry: MeterRegistry) =
+            registry.counter("feed_hydration_timeouts")
+
+    @Bean
+    fun feedHydrationActiveGauge(registry: MeterRegistry, hydrationExecutor: ThreadPoolTaskExecutor): Gauge =
+            Gauge.builder("feed_hydration_active", hydrationExecutor) { it.activeCount.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun feedHydrationQueueGauge(registry: MeterRegistry, hydrationExecutor: ThreadPoolTaskExecutor): Gauge =
+            Gauge.builder("feed_hydration_queued", hydrationExecutor) { it.threadPoolExecutor.queue.size.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun sseEvictionsCounter(registry: MeterRegistry) =
+            registry.counter("feed_sse_evictions")
+
+    @Bean
+    fun sseConnectionsGauge(registry: MeterRegistry, sseConnectionRegistry: SseConnectionRegistry): Gauge =
+            Gauge.builder("feed_sse_connections", sseConnectionRegistry) { it.size.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun sseUsersGauge(registry: MeterRegistry, sseConnectionRegistry: SseConnectionRegistry): Gauge =
+            Gauge.builder("feed_sse_users", sseConnectionRegistry) { it.userCount.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun feedCacheInvalidationsCounter(registry: MeterRegistry) =
+            registry.counter("feed_cache_invalidations")
+
+    @Bean
+    fun feedIngestBatchSummary(registry: MeterRegistry) =
+            registry.summary("feed_ingest_batch_size")
+
+    @Bean
+    fun feedIngestWriteTimer(registry: MeterRegistry) =
+            registry.timer("feed_ingest_write")
+
+    @Bean
+    fun feedIngestLagTimer(registry: MeterRegistry) =
+            registry.timer("feed_ingest_lag")
+
+    @Bean
+    fun feedIngestPauseTimer(registry: MeterRegistry) =
+            registry.timer("feed_ingest_pause")
+
+    @Bean
+    fun feedIngestQueueGauge(registry: MeterRegistry, postBatchWriter: PostBatchWriter): Gauge =
+            Gauge.builder("feed_ingest_queued", postBatchWriter) { it.queueSize.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun feedIngestPausedGauge(registry: MeterRegistry, postConsumerControl: PostConsumerControl): Gauge =
+            Gauge.builder("feed_ingest_paused", postConsumerControl) { if (it.isPaused) 1.0 else 0.0 }
+                    .register(registry)
+
+    @Bean
+    fun feedCacheWarmupsCounter(registry: MeterRegistry) =
+            registry.counter("feed_cache_warmups")
+
+    @Bean
+    fun activeUsersGauge(registry: MeterRegistry, activeUsers: ActiveUsers): Gauge =
+            Gauge.builder("feed_active_users", activeUsers) { it.size.toDouble() }
+                    .register(registry)
+
+    @Bean
+    fun feedPrunedItemsCounter(registry: MeterRegistry) =
+            registry.counter("feed_pruned_items")
+
+    @Bean
+    fun feedPrunedBucketsCounter(registry: MeterRegistry) =
+            registry.counter("feed_pruned_buckets")
 }
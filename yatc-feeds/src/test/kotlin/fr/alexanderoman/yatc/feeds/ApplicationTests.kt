@@ -16,14 +16,49 @@
 
 package fr.alexanderoman.yatc.feeds
 
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.anyList
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.BDDMockito.given
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.mockingDetails
+import org.mockito.Mockito.reset
+import org.mockito.Mockito.verifyZeroInteractions
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.boot.test.mock.mockito.MockBean
+import org.springframework.boot.test.mock.mockito.SpyBean
 import org.springframework.boot.test.web.client.TestRestTemplate
 import org.springframework.boot.web.server.LocalServerPort
+import org.springframework.cloud.stream.config.BindingServiceProperties
+import org.springframework.cloud.stream.messaging.Sink
+import org.springframework.cloud.stream.test.binder.MessageCollector
+import org.springframework.data.domain.PageRequest
+import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpMethod
+import org.springframework.http.HttpStatus
+import org.springframework.http.client.ClientHttpRequestInterceptor
+import org.springframework.messaging.support.MessageBuilder
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
 import org.springframework.test.context.ActiveProfiles
 import org.springframework.test.context.junit4.SpringRunner
+import org.springframework.web.client.RestTemplate
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter
+import java.io.IOException
+import java.time.Duration
+import java.time.OffsetDateTime
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
 
 @ActiveProfiles("test")
 @RunWith(SpringRunner::class)
@@ -34,7 +69,599 @@ class ApplicationTests {
     @Autowired
     private lateinit var restTemplate: TestRestTemplate
 
+    @MockBean
+    private lateinit var connectionsClientService: ConnectionsClientService
+    @MockBean
+    private lateinit var postsClientService: PostsClientService
+    @MockBean
+    private lateinit var usersClientService: UsersClientService
+    @SpyBean
+    private lateinit var feedService: FeedService
+    @SpyBean
+    private lateinit var sseDispatcher: SseDispatcher
+    @Autowired
+    private lateinit var sink: Sink
+    @Autowired
+    private lateinit var postNotifications: PostNotifications
+    @Autowired
+    private lateinit var messageCollector: MessageCollector
+    @Autowired
+    private lateinit var sseConnectionRegistry: SseConnectionRegistry
+    @Autowired
+    private lateinit var feedNotifier: FeedNotifier
+    @Autowired
+    private lateinit var feedPruner: FeedPruner
+    @Autowired
+    private lateinit var timelinePruner: TimelinePruner
+    @Autowired
+    private lateinit var feedItemRepo: FeedItemRepository
+    @Autowired
+    private lateinit var timelineItemRepo: TimelineItemRepository
+    @Autowired
+    private lateinit var authorPostCache: AuthorPostCache
+    @Autowired
+    private lateinit var feedCache: FeedCache
+    @Autowired
+    private lateinit var postConsumerControl: PostConsumerControl
+    @Autowired
+    private lateinit var postBatchWriter: PostBatchWriter
+    @Autowired
+    private lateinit var bindingServiceProperties: BindingServiceProperties
+    @Autowired
+    private lateinit var hydrationExecutor: ThreadPoolTaskExecutor
+    @Autowired
+    private lateinit var activeUsers: ActiveUsers
+    @Autowired
+    private lateinit var meterRegistry: MeterRegistry
+    @Autowired
+    private lateinit var props: AppProperties
+
+    private fun url(path: String) = "http://localhost:$webPort$path"
+
+    private fun givenFollowers(user: String, followers: List<String>) {
+        // Current followers are used for pushing posts, and cached followers for notifying users.
+        given(connectionsClientService.getFollowers(user)).willReturn(followers)
+        given(connectionsClientService.fetchCurrentFollowers(user)).willReturn(followers)
+    }
+
     @Test
     fun contextLoads() {
     }
+
+    @Test
+    fun testFeedFromTimeline() {
+        givenFollowers("joe", listOf("jane"))
+        given(connectionsClientService.getFollowings(anyString())).willReturn(listOf())
+        given(usersClientService.getUser("joe")).willReturn(User("joe", "Joe", null))
+        val created = OffsetDateTime.now()
+
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1, "joe", created, "Hello")).build())
+        // Posts received twice are only saved once.
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1, "joe", created, "Hello")).build())
+
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/jane"), FeedResponse::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(1L)
+        val post = resp.body!!.posts[0]
+        assertThat(post.content).isEqualTo("Hello")
+        assertThat(post.author.name).isEqualTo("Joe")
+        verifyZeroInteractions(postsClientService)
+        val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/john"), FeedResponse::class.java)
+        assertThat(resp2.body!!.posts).isEmpty()
+    }
+
+    @Test
+    fun testFeedWhenFanOutChanges() {
+        given(connectionsClientService.getFollowings("rita")).willReturn(listOf("quinn"))
+        given(usersClientService.getUser("quinn")).willReturn(User("quinn", "Quinn", null))
+        val fanOutThreshold = props.timeline.fanOutThreshold
+        val created = OffsetDateTime.now().minusDays(8)
+        try {
+            props.timeline.fanOutThreshold = 1
+            givenFollowers("quinn", listOf("rita"))
+            sink.input().send(MessageBuilder.withPayload(PostSummary(801, "quinn", created, "Post 801")).build())
+
+            // Posts pushed to timelines are not merged again once this author has more followers.
+            givenFollowers("quinn", listOf("rita", "sam"))
+            sink.input().send(MessageBuilder.withPayload(PostSummary(802, "quinn", created.plusMinutes(1), "Post 802")).build())
+            val resp = restTemplate.getForEntity(url("/api/v1/feeds/rita"), FeedResponse::class.java)
+            assertThat(resp.body!!.posts.map { it.id }).containsExactly(802L, 801L)
+
+            // Posts which were not pushed are still merged once this author has fewer followers.
+            givenFollowers("quinn", listOf("rita"))
+            val newPost = PostSummary(803, "quinn", created.plusMinutes(2), "Post 803")
+            sink.input().send(MessageBuilder.withPayload(newPost).build())
+            postNotifications.notifications().send(MessageBuilder.withPayload(newPost).build())
+            val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/rita"), FeedResponse::class.java)
+            assertThat(resp2.body!!.posts.map { it.id }).containsExactly(803L, 802L, 801L)
+        } finally {
+            props.timeline.fanOutThreshold = fanOutThreshold
+        }
+    }
+
+    @Test
+    fun testFeedWhenFollowersUnavailable() {
+        given(connectionsClientService.fetchCurrentFollowers("pia")).willThrow(IllegalStateException("Connections unavailable"))
+        given(connectionsClientService.getFollowers("pia")).willReturn(listOf())
+        given(connectionsClientService.getFollowings("ned")).willReturn(listOf("pia"))
+        given(usersClientService.getUser("pia")).willReturn(User("pia", "Pia", null))
+
+        // Posts are not lost when followers are not available: these posts are merged at read time.
+        sink.input().send(MessageBuilder.withPayload(PostSummary(811, "pia", OffsetDateTime.now(), "Post 811")).build())
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/ned"), FeedResponse::class.java)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(811L)
+    }
+
+    @Test
+    fun testTimelineFollowings() {
+        given(connectionsClientService.getFollowers(anyString())).willReturn(listOf())
+        given(connectionsClientService.fetchCurrentFollowers(anyString())).willReturn(listOf())
+        given(usersClientService.getUser(anyString())).willAnswer { User(it.getArgument<String>(0), null, null) }
+        val created = OffsetDateTime.now().minusDays(10)
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1101, "yann", created, "Post 1101")).build())
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1102, "zoe", created.plusMinutes(1), "Post 1102")).build())
+
+        // Posts received before a first post is pushed to a timeline are kept in this feed.
+        givenFollowers("zoe", listOf("olga"))
+        given(connectionsClientService.getFollowings("olga")).willReturn(listOf("zoe"))
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1103, "zoe", created.plusMinutes(2), "Post 1103")).build())
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/olga"), FeedResponse::class.java)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(1103L, 1102L)
+        assertThat(timelineItemRepo.findTimeline("olga", 0, PageRequest.of(0, 10)).map { it.post })
+                .containsExactly(1103L, 1102L)
+
+        // Posts from followed authors are added to this timeline.
+        given(connectionsClientService.getFollowings("olga")).willReturn(listOf("zoe", "yann"))
+        feedCache.invalidateFirstPages(listOf("olga"))
+        val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/olga"), FeedResponse::class.java)
+        assertThat(resp2.body!!.posts.map { it.id }).containsExactly(1103L, 1102L, 1101L)
+
+        // Posts from unfollowed authors are removed from this timeline.
+        given(connectionsClientService.getFollowings("olga")).willReturn(listOf("yann"))
+        feedCache.invalidateFirstPages(listOf("olga"))
+        val resp3 = restTemplate.getForEntity(url("/api/v1/feeds/olga"), FeedResponse::class.java)
+        assertThat(resp3.body!!.posts.map { it.id }).containsExactly(1101L)
+        assertThat(timelineItemRepo.findTimeline("olga", 0, PageRequest.of(0, 10)).map { it.post })
+                .containsExactly(1101L)
+    }
+
+    @Test
+    fun testFeedPages() {
+        givenFollowers("bob", listOf("alice"))
+        given(usersClientService.getUser("bob")).willReturn(User("bob", "Bob", null))
+        val created = OffsetDateTime.now().minusDays(1)
+        (101L..112L).forEach {
+            val post = PostSummary(it, "bob", created.plusMinutes(it), "Post $it")
+            sink.input().send(MessageBuilder.withPayload(post).build())
+        }
+
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/alice"), FeedResponse::class.java)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactlyElementsOf(112L downTo 103L)
+        assertThat(resp.body!!.next).isNotNull()
+
+        val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/alice?before=${resp.body!!.next}"), FeedResponse::class.java)
+        assertThat(resp2.body!!.posts.map { it.id }).containsExactly(102L, 101L)
+        assertThat(resp2.body!!.next).isNull()
+
+        val resp3 = restTemplate.getForEntity(url("/api/v1/feeds/alice?page=1"), FeedResponse::class.java)
+        assertThat(resp3.body!!.posts.map { it.id }).containsExactly(102L, 101L)
+
+        val resp4 = restTemplate.getForEntity(url("/api/v1/feeds/alice?before=foo"), String::class.java)
+        assertThat(resp4.statusCode).isEqualTo(HttpStatus.BAD_REQUEST)
+
+        // Cached first page must be updated when a new post is received.
+        val newPost = PostSummary(113, "bob", created.plusMinutes(113), "Post 113")
+        sink.input().send(MessageBuilder.withPayload(newPost).build())
+        postNotifications.notifications().send(MessageBuilder.withPayload(newPost).build())
+        val resp5 = restTemplate.getForEntity(url("/api/v1/feeds/alice"), FeedResponse::class.java)
+        assertThat(resp5.body!!.posts.map { it.id }).containsExactlyElementsOf(113L downTo 104L)
+
+        // Pages are numbered from the cursor when a cursor is set: only first pages are cached.
+        val cursor = feedService.getCursor(112L)!!.encode()
+        val resp6 = restTemplate.getForEntity(url("/api/v1/feeds/alice?before=$cursor&page=1"), FeedResponse::class.java)
+        assertThat(resp6.body!!.posts.map { it.id }).containsExactly(101L)
+        assertThat(feedCache.get(FeedPageKey("alice", cursor))).isNull()
+
+        // First pages read while these pages are invalidated are not cached.
+        val load = feedCache.startLoad(FeedPageKey("alice", null))
+        feedCache.invalidateFirstPages(listOf("alice"))
+        feedCache.put(load, resp.body!!)
+        feedCache.endLoad(load)
+        assertThat(feedCache.get(FeedPageKey("alice", null))).isNull()
+    }
+
+    @Test
+    fun testNotifySavedPosts() {
+        givenFollowers("paul", listOf())
+        val post = PostSummary(151, "paul", OffsetDateTime.now().minusDays(7), "Post 151")
+        sink.input().send(MessageBuilder.withPayload(post).build())
+        sink.input().send(MessageBuilder.withPayload(post).build())
+
+        // Saved posts are announced once, after these posts are saved.
+        val om = jacksonObjectMapper().registerModule(JavaTimeModule())
+        val saved = generateSequence { messageCollector.forChannel(postNotifications.saved()).poll() }
+                .map { om.readValue(it.payload.toString(), PostSummary::class.java) }
+                .filter { it.id == 151L }.toList()
+        assertThat(saved).hasSize(1)
+        assertThat(feedItemRepo.existsById(151)).isTrue()
+    }
+
+    @Test
+    fun testSseConnectionLimits() {
+        val conns = (1..5).map { sseConnectionRegistry.register("sse-user", "sse-client") }
+        assertThat(conns).doesNotContainNull()
+        assertThat(sseConnectionRegistry.register("sse-other-user", "sse-client")).isNull()
+        // Connections opened by other clients are not limited by this client.
+        val conn = sseConnectionRegistry.register("sse-user", "sse-user")
+        assertThat(conn).isNotNull()
+        assertThat(sseConnectionRegistry.getConnections("sse-user")).hasSize(6)
+
+        (conns + conn).forEach { sseConnectionRegistry.unregister(it!!) }
+        assertThat(sseConnectionRegistry.getConnections("sse-user")).isEmpty()
+        assertThat(sseConnectionRegistry.userCount).isEqualTo(0)
+        assertThat(sseConnectionRegistry.size).isEqualTo(0)
+    }
+
+    @Test
+    fun testSseEviction() {
+        val sending = CountDownLatch(1)
+        val sendable = CountDownLatch(1)
+        val completed = CountDownLatch(1)
+        val emitter = object : SseEmitter() {
+            override fun send(builder: SseEmitter.SseEventBuilder) {
+                sending.countDown()
+                sendable.await()
+            }
+
+            override fun complete() {
+                completed.countDown()
+            }
+        }
+        val conn = SseConnection("sse-slow", "sse-slow", emitter, 2)
+        val evictions = meterRegistry.counter("feed_sse_evictions").count()
+        try {
+            sseDispatcher.send(conn, SseEmitter.event().data("1"))
+            assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue()
+
+            // Events are queued while an event is being sent to this slow client.
+            (2..3).forEach { sseDispatcher.send(conn, SseEmitter.event().data(it.toString())) }
+            assertThat(conn.closed).isFalse()
+
+            // This connection is closed when too many events are waiting.
+            sseDispatcher.send(conn, SseEmitter.event().data("4"))
+            assertThat(conn.closed).isTrue()
+            assertThat(conn.queue).isEmpty()
+            assertThat(meterRegistry.counter("feed_sse_evictions").count()).isEqualTo(evictions + 1)
+        } finally {
+            sendable.countDown()
+        }
+        // This connection is completed once the pending event is sent.
+        assertThat(completed.await(5, TimeUnit.SECONDS)).isTrue()
+    }
+
+    @Test
+    fun testCoalesceFeedEvents() {
+        val conn = sseConnectionRegistry.register("sse-coalesce", "sse-coalesce")!!
+        try {
+            feedNotifier.notify("sse-coalesce", 1401, null)
+            feedNotifier.notify("sse-coalesce", 1402, null)
+
+            // Notifications received during a time window are sent as a single event.
+            var events = listOf<FeedEvent>()
+            for (i in 1..50) {
+                events = mockingDetails(sseDispatcher).invocations
+                        .filter { it.method.name == "send" && it.arguments[0] === conn }
+                        .flatMap { (it.arguments[1] as SseEmitter.SseEventBuilder).build() }
+                        .map { it.data }.filterIsInstance<FeedEvent>()
+                if (events.isNotEmpty()) break
+                Thread.sleep(100)
+            }
+            assertThat(events).containsExactly(FeedEvent(1402, listOf(1401L, 1402L)))
+        } finally {
+            sseConnectionRegistry.unregister(conn)
+        }
+    }
+
+    @Test
+    fun testFeedStream() {
+        givenFollowers("carol", listOf("dave"))
+        given(usersClientService.getUser("carol")).willReturn(User("carol", "Carol", null))
+        val created = OffsetDateTime.now().minusDays(2)
+        (201L..203L).forEach {
+            val post = PostSummary(it, "carol", created.plusMinutes(it), "Post $it")
+            sink.input().send(MessageBuilder.withPayload(post).build())
+        }
+
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/dave/stream"), String::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp.headers.contentType.toString()).isEqualTo("application/x-ndjson")
+        val om = jacksonObjectMapper().registerModule(JavaTimeModule())
+        val posts = resp.body!!.lines().filter { it.isNotBlank() }.map { om.readValue(it, Post::class.java) }
+        assertThat(posts.map { it.id }).containsExactlyInAnyOrder(201L, 202L, 203L)
+    }
+
+    @Test
+    fun testPruneTimelines() {
+        givenFollowers("yara", listOf("zack"))
+        val created = OffsetDateTime.now().minusDays(3)
+        val maxLength = props.timeline.maxLength
+        try {
+            props.timeline.maxLength = 2
+            (1301L..1303L).forEach {
+                sink.input().send(MessageBuilder.withPayload(PostSummary(it, "yara", created.plusMinutes(it), "Post $it")).build())
+            }
+            // Only timelines updated since these were last pruned are trimmed.
+            timelinePruner.pruneTimelines()
+        } finally {
+            props.timeline.maxLength = maxLength
+        }
+        val page = PageRequest.of(0, 10)
+        assertThat(timelineItemRepo.findCreated("zack", page)).hasSize(2)
+        assertThat(timelineItemRepo.findCreated("yara", page)).hasSize(2)
+        assertThat(timelineItemRepo.findTimeline("zack", 0, page).map { it.post }).containsExactly(1303L, 1302L)
+    }
+
+    @Test
+    fun testFeedRetention() {
+        givenFollowers("erin", listOf("frank"))
+        given(usersClientService.getUser("erin")).willReturn(User("erin", "Erin", null))
+        val created = OffsetDateTime.now()
+        sink.input().send(MessageBuilder.withPayload(PostSummary(301, "erin", created.minusYears(2), "Old post")).build())
+        sink.input().send(MessageBuilder.withPayload(PostSummary(302, "erin", created, "New post")).build())
+
+        // Posts older than the retention horizon are not in feeds, even before these are removed.
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/frank"), FeedResponse::class.java)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(302L)
+
+        feedPruner.pruneFeeds()
+        assertThat(feedItemRepo.existsById(301)).isFalse()
+        assertThat(feedItemRepo.existsById(302)).isTrue()
+    }
+
+    @Test
+    fun testFeedSince() {
+        givenFollowers("gina", listOf("hank"))
+        given(usersClientService.getUser("gina")).willReturn(User("gina", "Gina", null))
+        val created = OffsetDateTime.now().minusDays(3)
+        (401L..402L).forEach {
+            val post = PostSummary(it, "gina", created.plusMinutes(it), "Post $it")
+            sink.input().send(MessageBuilder.withPayload(post).build())
+        }
+
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/hank?since=402"), FeedResponse::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.NOT_MODIFIED)
+        val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/hank?since=401"), FeedResponse::class.java)
+        assertThat(resp2.body!!.posts.map { it.id }).containsExactly(402L)
+
+        // Cached first page is used for finding new posts.
+        restTemplate.getForEntity(url("/api/v1/feeds/hank"), FeedResponse::class.java)
+        val cursor = FeedCursor(created.plusMinutes(401), 401).encode()
+        val resp3 = restTemplate.getForEntity(url("/api/v1/feeds/hank?since=$cursor"), FeedResponse::class.java)
+        assertThat(resp3.body!!.posts.map { it.id }).containsExactly(402L)
+        val resp4 = restTemplate.getForEntity(url("/api/v1/feeds/hank?since=foo"), String::class.java)
+        assertThat(resp4.statusCode).isEqualTo(HttpStatus.BAD_REQUEST)
+    }
+
+    @Test
+    fun testFeedETag() {
+        givenFollowers("ivan", listOf("judy"))
+        given(usersClientService.getUser("ivan")).willReturn(User("ivan", "Ivan", null))
+        val created = OffsetDateTime.now().minusDays(4)
+        sink.input().send(MessageBuilder.withPayload(PostSummary(501, "ivan", created, "Post 501")).build())
+
+        val resp = restTemplate.getForEntity(url("/api/v1/feeds/judy"), FeedResponse::class.java)
+        val etag = resp.headers.eTag
+        assertThat(etag).isNotNull()
+        val headers = HttpHeaders()
+        headers.ifNoneMatch = listOf(etag!!)
+        val resp2 = restTemplate.exchange(url("/api/v1/feeds/judy"), HttpMethod.GET, HttpEntity<Any>(headers), String::class.java)
+        assertThat(resp2.statusCode).isEqualTo(HttpStatus.NOT_MODIFIED)
+
+        // Feed ETag changes when a new post is received.
+        val newPost = PostSummary(502, "ivan", created.plusMinutes(1), "Post 502")
+        sink.input().send(MessageBuilder.withPayload(newPost).build())
+        postNotifications.notifications().send(MessageBuilder.withPayload(newPost).build())
+        val resp3 = restTemplate.exchange(url("/api/v1/feeds/judy"), HttpMethod.GET, HttpEntity<Any>(headers), FeedResponse::class.java)
+        assertThat(resp3.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp3.body!!.posts.map { it.id }).containsExactly(502L, 501L)
+        assertThat(resp3.headers.eTag).isNotEqualTo(etag)
+
+        // Incomplete pages have no ETag.
+        givenFollowers("tina", listOf("uma"))
+        given(usersClientService.getUser("tina")).willThrow(IllegalStateException("Service unavailable"))
+        sink.input().send(MessageBuilder.withPayload(PostSummary(503, "tina", created, "Post 503")).build())
+        val resp4 = restTemplate.getForEntity(url("/api/v1/feeds/uma"), FeedResponse::class.java)
+        assertThat(resp4.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp4.body!!.posts).isEmpty()
+        assertThat(resp4.headers.eTag).isNull()
+
+        // Pages showing unknown authors are not cached, and have no ETag.
+        givenFollowers("wyatt", listOf("xavi"))
+        given(usersClientService.getUser("wyatt")).willReturn(User.unknown("wyatt"))
+        sink.input().send(MessageBuilder.withPayload(PostSummary(504, "wyatt", created, "Post 504")).build())
+        val resp5 = restTemplate.getForEntity(url("/api/v1/feeds/xavi"), FeedResponse::class.java)
+        assertThat(resp5.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp5.body!!.posts.map { it.author.name }).containsExactly("wyatt")
+        assertThat(resp5.headers.eTag).isNull()
+        assertThat(feedCache.get(FeedPageKey("xavi", null))).isNull()
+    }
+
+    @Test
+    fun testUnknownUser() {
+        val restTemplate = RestTemplate()
+        restTemplate.interceptors.add(ClientHttpRequestInterceptor { _, _, _ -> throw IOException("Service unavailable") })
+        val props = AppProperties()
+        val client = UsersClientService(restTemplate, Bulkhead("users", props.clients.users), props, SimpleMeterRegistry())
+        val user = client.getUser("yves")
+        assertThat(user).isEqualTo(User.unknown("yves"))
+        assertThat(user.unknown).isTrue()
+        assertThat(client.getCachedUser("yves")).isNull()
+    }
+
+    @Test
+    fun testMergeRecentPosts() {
+        given(connectionsClientService.getFollowers(anyString())).willReturn(listOf())
+        given(connectionsClientService.fetchCurrentFollowers(anyString())).willReturn(listOf())
+        val created = OffsetDateTime.now().minusDays(5)
+        (601L..604L).forEach {
+            val author = if (it % 2 == 0L) "kim" else "lou"
+            sink.input().send(MessageBuilder.withPayload(PostSummary(it, author, created.plusMinutes(it), "Post $it")).build())
+        }
+
+        // Recent posts are loaded in background the first time.
+        assertThat(authorPostCache.merge(listOf("kim", "lou"), null, 10)).isNull()
+        var merged: List<FeedItem>? = null
+        for (i in 1..50) {
+            merged = authorPostCache.merge(listOf("kim", "lou"), null, 10)
+            if (merged != null) break
+            Thread.sleep(100)
+        }
+        assertThat(merged!!.map { it.post }).containsExactly(604L, 603L, 602L, 601L)
+
+        val newPost = PostSummary(605, "lou", created.plusMinutes(605), "Post 605")
+        postNotifications.notifications().send(MessageBuilder.withPayload(newPost).build())
+        assertThat(authorPostCache.merge(listOf("kim", "lou"), null, 2)!!.map { it.post }).containsExactly(605L, 604L)
+        val cursor = FeedCursor.of(merged.first { it.post == 603L })
+        assertThat(authorPostCache.merge(listOf("kim", "lou"), cursor, 10)!!.map { it.post }).containsExactly(602L, 601L)
+    }
+
+    @Test
+    fun testHydrationPoolFull() {
+        givenFollowers("wes", listOf("xena"))
+        given(usersClientService.getUser("wes")).willReturn(User("wes", "Wes", null))
+        sink.input().send(MessageBuilder.withPayload(PostSummary(1001, "wes", OffsetDateTime.now(), "Post 1001")).build())
+
+        val released = CountDownLatch(1)
+        try {
+            assertThatThrownBy { while (true) hydrationExecutor.execute { released.await() } }
+                    .isInstanceOf(RejectedExecutionException::class.java)
+
+            // Posts are left out of feed pages when these cannot be hydrated.
+            val resp = restTemplate.getForEntity(url("/api/v1/feeds/xena"), FeedResponse::class.java)
+            assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+            assertThat(resp.body!!.posts).isEmpty()
+        } finally {
+            released.countDown()
+        }
+        val resp2 = restTemplate.getForEntity(url("/api/v1/feeds/xena"), FeedResponse::class.java)
+        assertThat(resp2.body!!.posts.map { it.id }).containsExactly(1001L)
+    }
+
+    @Test
+    fun testBulkhead() {
+        val props = AppProperties.Downstream()
+        props.maxConcurrentCalls = 1
+        props.maxWait = Duration.ZERO
+        val bulkhead = Bulkhead("test", props)
+        val ret = bulkhead.call {
+            assertThat(bulkhead.activeCalls).isEqualTo(1)
+            assertThatThrownBy { bulkhead.call { "nested" } }.isInstanceOf(RejectedExecutionException::class.java)
+            "Hello"
+        }
+        assertThat(ret).isEqualTo("Hello")
+        assertThat(bulkhead.activeCalls).isEqualTo(0)
+    }
+
+    @Test
+    fun testWarmFeedForActiveUsers() {
+        // Test requests are authenticated as user "test".
+        givenFollowers("max", listOf("nina", "test"))
+        given(usersClientService.getUser("max")).willReturn(User("max", "Max", null))
+        val created = OffsetDateTime.now().minusDays(6)
+        sink.input().send(MessageBuilder.withPayload(PostSummary(701, "max", created, "Post 701")).build())
+        restTemplate.getForEntity(url("/api/v1/feeds/test"), FeedResponse::class.java)
+        // Reading another user feed does not make this user active.
+        restTemplate.getForEntity(url("/api/v1/feeds/nina"), FeedResponse::class.java)
+        assertThat(activeUsers.getAuthentication("nina")).isNull()
+
+        // First page is loaded in cache when a new post is received for an active user.
+        val warmups = meterRegistry.counter("feed_cache_warmups").count()
+        val newPost = PostSummary(702, "max", created.plusMinutes(1), "Post 702")
+        sink.input().send(MessageBuilder.withPayload(newPost).build())
+        postNotifications.notifications().send(MessageBuilder.withPayload(newPost).build())
+        var page: FeedResponse? = null
+        for (i in 1..50) {
+            page = feedCache.get(FeedPageKey("test", null))
+            if (page != null) break
+            Thread.sleep(100)
+        }
+        assertThat(page!!.posts.map { it.id }).containsExactly(702L, 701L)
+        assertThat(feedCache.get(FeedPageKey("nina", null))).isNull()
+        assertThat(meterRegistry.counter("feed_cache_warmups").count()).isEqualTo(warmups + 1)
+    }
+
+    @Test
+    fun testPausePostConsumer() {
+        givenFollowers("vic", listOf())
+        val concurrency = bindingServiceProperties.getConsumerProperties(Sink.INPUT).concurrency
+        val writing = CountDownLatch(1)
+        val writable = CountDownLatch(1)
+        doAnswer {
+            writing.countDown()
+            writable.await()
+            it.callRealMethod()
+        }.`when`(feedService).savePosts(anyList())
+        // There are as many senders as listener threads.
+        val consumers = Executors.newFixedThreadPool(concurrency)
+        val maxWriteLatency = props.ingest.maxWriteLatency
+        try {
+            props.ingest.maxWriteLatency = Duration.ofMillis(200)
+            // Every listener thread waits for its post while posts are being saved.
+            val created = OffsetDateTime.now().minusDays(9)
+            (901L until 901L + concurrency).forEach {
+                val post = PostSummary(it, "vic", created.plusMinutes(it), "Post $it")
+                consumers.submit { sink.input().send(MessageBuilder.withPayload(post).build()) }
+                if (it == 901L) {
+                    writing.await(10, TimeUnit.SECONDS)
+                }
+            }
+            // Consumer is paused once posts are waiting longer than the maximum write latency.
+            postConsumerControl.check()
+            assertThat(postConsumerControl.isPaused).isFalse()
+            Thread.sleep(300)
+            postConsumerControl.check()
+            assertThat(postConsumerControl.isPaused).isTrue()
+        } finally {
+            props.ingest.maxWriteLatency = maxWriteLatency
+            writable.countDown()
+            consumers.shutdown()
+            consumers.awaitTermination(10, TimeUnit.SECONDS)
+            reset(feedService)
+        }
+        assertThat(feedItemRepo.existsById(900L + concurrency)).isTrue()
+
+        val minPause = props.ingest.minPause
+        try {
+            props.ingest.minPause = Duration.ZERO
+            postConsumerControl.check()
+            assertThat(postConsumerControl.isPaused).isFalse()
+        } finally {
+            props.ingest.minPause = minPause
+        }
+    }
+
+    @Test
+    fun testNoPauseWhenPostsAreSavedInTime() {
+        givenFollowers("walt", listOf())
+        val concurrency = bindingServiceProperties.getConsumerProperties(Sink.INPUT).concurrency
+        val consumers = Executors.newFixedThreadPool(concurrency)
+        try {
+            // Every listener thread is busy, while posts are saved in time.
+            val created = OffsetDateTime.now().minusDays(9)
+            val sent = (1201L until 1201L + concurrency * 5).map {
+                val post = PostSummary(it, "walt", created.plusMinutes(it), "Post $it")
+                consumers.submit { sink.input().send(MessageBuilder.withPayload(post).build()) }
+            }
+            while (sent.any { !it.isDone }) {
+                postConsumerControl.check()
+                assertThat(postConsumerControl.isPaused).isFalse()
+                Thread.sleep(10)
+            }
+            sent.forEach { it.get() }
+        } finally {
+            consumers.shutdown()
+            consumers.awaitTermination(10, TimeUnit.SECONDS)
+        }
+        assertThat(feedItemRepo.existsById(1200L + concurrency * 5)).isTrue()
+    }
 }
@@ -17,16 +17,22 @@
 package fr.alexandreroman.yatc.posts
 
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
 import io.jsonwebtoken.Jwts
 import io.jsonwebtoken.security.Keys
-import okhttp3.Cache
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics
 import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.boot.autoconfigure.SpringBootApplication
+import org.springframework.boot.context.properties.ConfigurationProperties
 import org.springframework.boot.runApplication
-import org.springframework.boot.web.servlet.FilterRegistrationBean
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient
 import org.springframework.cloud.client.loadbalancer.LoadBalanced
 import org.springframework.cloud.stream.annotation.EnableBinding
@@ -34,13 +40,21 @@ import org.springframework.cloud.stream.messaging.Source
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 import org.springframework.core.env.Environment
+import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Pageable
+import org.springframework.data.domain.Sort
+import org.springframework.data.jpa.repository.Modifying
+import org.springframework.data.jpa.repository.Query
 import org.springframework.data.repository.CrudRepository
 import org.springframework.http.CacheControl
 import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
 import org.springframework.http.client.OkHttp3ClientHttpRequestFactory
 import org.springframework.messaging.support.MessageBuilder
+import org.springframework.scheduling.annotation.EnableScheduling
+import org.springframework.scheduling.annotation.Scheduled
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
 import org.springframework.security.config.annotation.web.builders.HttpSecurity
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter
@@ -50,11 +64,16 @@ import org.springframework.stereotype.Component
 import org.springframework.transaction.annotation.Transactional
 import org.springframework.web.bind.annotation.*
 import org.springframework.web.client.RestTemplate
+import org.springframework.web.context.request.WebRequest
 import org.springframework.web.filter.OncePerRequestFilter
-import org.springframework.web.filter.ShallowEtagHeaderFilter
 import java.nio.file.Files
+import java.time.Duration
+import java.time.Instant
 import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.util.*
 import java.util.concurrent.TimeUnit
+import java.util.stream.Collectors
 import java.util.stream.Stream
 import javax.persistence.*
 import javax.servlet.FilterChain
@@ -64,12 +83,55 @@ import javax.validation.constraints.Positive
 
 @SpringBootApplication
 @EnableDiscoveryClient
+@EnableScheduling
 class Application
 
 fun main(args: Array<String>) {
     runApplication<Application>(*args)
 }
 
+@Configuration
+@ConfigurationProperties("posts")
+class AppProperties {
+    /**
+     * Post events outbox settings.
+     */
+    val outbox = Outbox()
+
+    class Outbox {
+        /**
+         * Maximum number of post events published in a single batch.
+         */
+        var batchSize: Int = 100
+        /**
+         * Delay between two runs of the outbox relay.
+         */
+        var relayDelay: Duration = Duration.ofMillis(200)
+        /**
+         * Time after which post events claimed by a relay instance
+         * can be published by another instance.
+         */
+        var claimTimeout: Duration = Duration.ofMinutes(1)
+        /**
+         * Maximum delay before publishing post events again after a failure:
+         * this delay is doubled after each failure.
+         */
+        var maxRetryDelay: Duration = Duration.ofSeconds(30)
+    }
+
+    /**
+     * Post cache settings.
+     */
+    val cache = PostCache()
+
+    class PostCache {
+        /**
+         * Maximum size of serialized posts kept in memory, in bytes.
+         */
+        var maxBytes: Long = 16 * 1024 * 1024
+    }
+}
+
 @Configuration
 class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapter() {
     @Value("\${security.tokenSecret}")
@@ -104,8 +166,11 @@ class SecurityConfig(private val env: Environment) : WebSecurityConfigurerAdapte
 }
 
 @RestController
-class PostsController(private val postsService: PostsService) {
+class PostsController(private val postsService: PostsService,
+                      private val usersClientService: UsersClientService,
+                      private val serializedPostCache: SerializedPostCache) {
     private val logger = LoggerFactory.getLogger(javaClass)
+    private val pageSize = 10
 
     @PostMapping("/api/v1/posts")
     fun newPost(@RequestBody req: NewPostRequest) =
@@ -121,16 +186,80 @@ class PostsController(private val postsService: PostsService) {
             }
 
     @GetMapping("/api/v1/posts/{post}")
-    fun getPost(@PathVariable("post") @Positive postId: Long) =
+    fun getPost(@PathVariable("post") @Positive postId: Long, webRequest: WebRequest) =
             try {
-                val post = postsService.getPost(postId)
-                ResponseEntity.ok()
-                        .cacheControl(CacheControl.maxAge(1, TimeUnit.HOURS))
-                        .lastModified(post.created.toInstant().toEpochMilli())
-                        .body(post)
+                // Posts are never updated: post id is used as ETag,
+                // so that conditional requests are answered without reading the post.
+                val etag = "\"$postId\""
+                if (webRequest.checkNotModified(etag)) {
+                    ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build<Any>()
+                } else {
+                    // Serialized posts are sent as is.
+                    val post = serializedPostCache.get(postId)
+                    ResponseEntity.ok()
+                            .cacheControl(CacheControl.maxAge(1, TimeUnit.HOURS))
+                            .eTag(etag)
+                            .lastModified(post.lastModified)
+                            .contentType(MediaType.APPLICATION_JSON_UTF8)
+                            .body(post.json)
+                }
             } catch (e: IllegalArgumentException) {
                 ResponseEntity.notFound().build<Any>()
             }
+
+    @GetMapping("/api/v1/posts", params = ["ids"])
+    fun getPosts(@RequestParam("ids") postIds: List<Long>) =
+            try {
+                if (postIds.size > 100) {
+                    throw IllegalArgumentException("Too many posts: ${postIds.size}")
+                }
+                // Unknown posts are not included in the response.
+                ResponseEntity.ok(PostBatchResponse(postsService.getPosts(postIds)))
+            } catch (e: IllegalArgumentException) {
+                logger.warn("Cannot get posts: {}", postIds, e)
+                ResponseEntity.badRequest().body("Cannot get posts")
+            }
+
+    @GetMapping("/api/v1/posts", params = ["author"])
+    fun getAuthorPosts(@RequestParam("author") author: String,
+                       @RequestParam("before", required = false) before: String?) =
+            try {
+                // Use "before" to get posts following a page.
+                val cursor = before?.let { PostCursor.decode(it) }
+                val posts = postsService.getAuthorPosts(author, cursor, pageSize)
+                val next = if (posts.size < pageSize) null else PostCursor.of(posts.last()).encode()
+
+                // All posts are from the same author: fetch author details once.
+                val user = usersClientService.getUser(author) ?: User(author)
+                val resp = posts.map { PostResponse(it.id!!, user, it.created, it.content) }
+                ResponseEntity.ok(PagedPostsResponse(posts = resp, next = next))
+            } catch (e: IllegalArgumentException) {
+                logger.warn("Cannot get posts from author: {}", author, e)
+                ResponseEntity.badRequest().body("Cannot get posts")
+            }
+}
+
+/**
+ * Position in posts from an author, used to get posts following a page.
+ */
+data class PostCursor(
+        val created: OffsetDateTime,
+        val post: Long
+) {
+    fun encode(): String =
+            Base64.getUrlEncoder().withoutPadding().encodeToString("${created.toInstant()}/$post".toByteArray())
+
+    companion object {
+        fun of(post: Post) = PostCursor(post.created, post.id!!)
+
+        fun decode(cursor: String): PostCursor =
+                try {
+                    val parts = String(Base64.getUrlDecoder().decode(cursor)).split("/")
+                    PostCursor(OffsetDateTime.ofInstant(Instant.parse(parts[0]), ZoneOffset.UTC), parts[1].toLong())
+                } catch (e: Exception) {
+                    throw IllegalArgumentException("Invalid post cursor: $cursor", e)
+                }
+    }
 }
 
 data class NewPostRequest(
@@ -141,7 +270,12 @@ data class NewPostRequest(
 @JsonInclude(JsonInclude.Include.NON_DEFAULT)
 data class PagedPostsResponse(
         val page: Int = 0,
-        val posts: List<PostResponse> = emptyList()
+        val posts: List<PostResponse> = emptyList(),
+        val next: String? = null
+)
+
+data class PostBatchResponse(
+        val posts: List<Post> = emptyList()
 )
 
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
@@ -160,6 +294,7 @@ data class User(
 )
 
 @Entity
+@Table(indexes = [Index(columnList = "author,created")])
 data class Post(
         @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
         var id: Long? = null,
@@ -173,14 +308,59 @@ data class Post(
 
 interface PostRepository : CrudRepository<Post, Long> {
     fun findByAuthorOrderByCreatedDesc(author: String, pageable: Pageable): Stream<Post>
+
+    @Query("SELECT p FROM Post p WHERE p.author = :author " +
+            "AND (p.created < :created OR (p.created = :created AND p.id < :id)) " +
+            "ORDER BY p.created DESC, p.id DESC")
+    fun findByAuthorBefore(author: String, created: OffsetDateTime, id: Long, pageable: Pageable): Stream<Post>
+}
+
+/**
+ * Post event waiting to be published, saved with the post it refers to.
+ */
+@Entity
+data class OutboxEvent(
+        @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+        var id: Long? = null,
+        @Column(nullable = false)
+        var post: Long,
+        @Column(nullable = false)
+        var created: OffsetDateTime = OffsetDateTime.now(),
+        // Relay instance publishing this event.
+        @Column(length = 64)
+        var relay: String? = null,
+        var claimed: OffsetDateTime? = null
+)
+
+interface OutboxEventRepository : CrudRepository<OutboxEvent, Long> {
+    @Query("SELECT o.id FROM OutboxEvent o WHERE o.claimed IS NULL OR o.claimed < :expired ORDER BY o.id")
+    fun findPending(expired: OffsetDateTime, pageable: Pageable): List<Long>
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEvent o SET o.relay = :relay, o.claimed = :claimed " +
+            "WHERE o.id IN (:ids) AND (o.claimed IS NULL OR o.claimed < :expired)")
+    fun claim(ids: List<Long>, relay: String, claimed: OffsetDateTime, expired: OffsetDateTime): Int
+
+    @Query("SELECT o FROM OutboxEvent o WHERE o.id IN (:ids) AND o.relay = :relay ORDER BY o.id")
+    fun findClaimed(ids: List<Long>, relay: String): List<OutboxEvent>
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEvent o SET o.relay = NULL, o.claimed = NULL WHERE o.id IN (:ids) AND o.relay = :relay")
+    fun release(ids: List<Long>, relay: String): Int
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM OutboxEvent o WHERE o.id IN (:ids)")
+    fun deleteByIds(ids: List<Long>): Int
 }
 
 @Component
-@EnableBinding(Source::class)
 class PostsService(
         private val postRepo: PostRepository,
-        private val usersClientService: UsersClientService,
-        private val source: Source) {
+        private val outboxEventRepo: OutboxEventRepository,
+        private val usersClientService: UsersClientService) {
     private val logger = LoggerFactory.getLogger(javaClass)
 
     @Transactional
@@ -192,13 +372,129 @@ class PostsService(
         post = postRepo.save(post)
         logger.info("Created post from {}: {}", author, post.id)
 
-        source.output().send(MessageBuilder.withPayload(post).build())
+        // Post event is published once this transaction is committed.
+        outboxEventRepo.save(OutboxEvent(post = post.id!!, created = post.created))
 
         return post
     }
 
     @Transactional(readOnly = true)
     fun getPost(post: Long) = postRepo.findById(post).orElseThrow { IllegalArgumentException("Unknown post: $post") }
+
+    @Transactional(readOnly = true)
+    fun getPosts(posts: List<Long>) = postRepo.findAllById(posts.distinct()).toList()
+
+    @Transactional(readOnly = true)
+    fun getAuthorPosts(author: String, before: PostCursor?, size: Int): List<Post> {
+        // Posts created at the same time are sorted by id, as done when using a cursor.
+        val page = PageRequest.of(0, size, Sort.by(Sort.Direction.DESC, "id"))
+        val posts = if (before == null) postRepo.findByAuthorOrderByCreatedDesc(author, page)
+        else postRepo.findByAuthorBefore(author, before.created, before.post, PageRequest.of(0, size))
+        return posts.use { it.collect(Collectors.toList()) }
+    }
+}
+
+/**
+ * Keep posts in memory as JSON, since posts are never updated.
+ */
+@Component
+class SerializedPostCache(private val postsService: PostsService,
+                          private val objectMapper: ObjectMapper,
+                          props: AppProperties,
+                          registry: MeterRegistry) {
+    private val posts: Cache<Long, SerializedPost> = Caffeine.newBuilder()
+            .maximumWeight(props.cache.maxBytes)
+            .weigher { _: Long, post: SerializedPost -> post.json.size }
+            .recordStats()
+            .build()
+
+    init {
+        CaffeineCacheMetrics.monitor(registry, posts, "posts")
+    }
+
+    class SerializedPost(
+            val json: ByteArray,
+            val lastModified: Long
+    )
+
+    /**
+     * Get a serialized post, or throw [IllegalArgumentException] if this post does not exist.
+     */
+    fun get(post: Long): SerializedPost = posts.get(post) {
+        val p = postsService.getPost(it)
+        SerializedPost(objectMapper.writeValueAsBytes(p), p.created.toInstant().toEpochMilli())
+    }!!
+}
+
+/**
+ * Publish post events saved in the outbox, in batches.
+ * Several instances may run this relay: events are claimed before being published.
+ * An event may be published more than once, if an instance fails after sending it.
+ */
+@Component
+@EnableBinding(Source::class)
+class OutboxRelay(private val outboxEventRepo: OutboxEventRepository,
+                  private val postRepo: PostRepository,
+                  private val source: Source,
+                  private val props: AppProperties,
+                  private val postOutboxLagTimer: Timer,
+                  private val postOutboxFailuresCounter: Counter) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val relayId = UUID.randomUUID().toString()
+    private var failures = 0
+    private var retryAt: Long = 0
+
+    @Scheduled(fixedDelayString = "#{@appProperties.outbox.relayDelay.toMillis()}")
+    fun relay() {
+        if (failures > 0 && System.nanoTime() < retryAt) {
+            return
+        }
+        try {
+            while (relayBatch() == props.outbox.batchSize) {
+                // Keep publishing while there are pending events.
+            }
+            failures = 0
+        } catch (e: Exception) {
+            failures += 1
+            val delay = minOf(props.outbox.relayDelay.multipliedBy(1L shl minOf(failures, 16)), props.outbox.maxRetryDelay)
+            logger.warn("Failed to publish post events: retrying in {}", delay, e)
+            postOutboxFailuresCounter.increment()
+            retryAt = System.nanoTime() + delay.toNanos()
+        }
+    }
+
+    private fun relayBatch(): Int {
+        val now = OffsetDateTime.now()
+        val expired = now.minus(props.outbox.claimTimeout)
+        val ids = outboxEventRepo.findPending(expired, PageRequest.of(0, props.outbox.batchSize))
+        if (ids.isEmpty() || outboxEventRepo.claim(ids, relayId, now, expired) == 0) {
+            return ids.size
+        }
+        val events = outboxEventRepo.findClaimed(ids, relayId)
+        val posts = postRepo.findAllById(events.map { it.post }).associateBy { it.id }
+
+        val sent = mutableListOf<Long>()
+        try {
+            for (event in events) {
+                val post = posts[event.post]
+                if (post != null) {
+                    source.output().send(MessageBuilder.withPayload(post).build())
+                    postOutboxLagTimer.record(Duration.between(event.created, OffsetDateTime.now()))
+                }
+                sent.add(event.id!!)
+            }
+        } catch (e: Exception) {
+            // Unpublished events are released, so that these events are published again.
+            outboxEventRepo.release(events.map { it.id!! } - sent, relayId)
+            throw e
+        } finally {
+            if (sent.isNotEmpty()) {
+                outboxEventRepo.deleteByIds(sent)
+            }
+        }
+        logger.debug("Published {} post events", sent.size)
+        return ids.size
+    }
 }
 
 @Component
@@ -250,14 +546,19 @@ class AppConfig {
                     .connectTimeout(10, TimeUnit.SECONDS)
                     .readTimeout(10, TimeUnit.SECONDS)
                     .addInterceptor(authInterceptor)
-                    .cache(Cache(Files.createTempDirectory("httpcache-").toFile(), 10 * 1024 * 1024))
+                    .cache(okhttp3.Cache(Files.createTempDirectory("httpcache-").toFile(), 10 * 1024 * 1024))
                     .build()
+}
+
+@Configuration
+class MetricsConfig {
+    // Define custom app metrics to track post events.
 
     @Bean
-    fun filterRegistrationBean(): FilterRegistrationBean<ShallowEtagHeaderFilter> {
-        val eTagFilter = ShallowEtagHeaderFilter()
-        val registration = FilterRegistrationBean(eTagFilter)
-        registration.addUrlPatterns("/*")
-        return registration
-    }
+    fun postOutboxLagTimer(registry: MeterRegistry) =
+            registry.timer("post_outbox_lag")
+
+    @Bean
+    fun postOutboxFailuresCounter(registry: MeterRegistry) =
+            registry.counter("post_outbox_failures")
 }
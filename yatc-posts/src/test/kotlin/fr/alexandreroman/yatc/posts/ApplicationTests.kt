@@ -30,9 +30,19 @@ import org.springframework.boot.test.web.client.TestRestTemplate
 import org.springframework.boot.web.server.LocalServerPort
 import org.springframework.cloud.stream.messaging.Source
 import org.springframework.cloud.stream.test.binder.MessageCollector
+import org.springframework.http.HttpEntity
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpMethod
 import org.springframework.http.HttpStatus
+import org.springframework.integration.channel.ChannelInterceptorAware
+import org.springframework.messaging.Message
+import org.springframework.messaging.MessageChannel
+import org.springframework.messaging.support.ChannelInterceptor
 import org.springframework.test.context.ActiveProfiles
 import org.springframework.test.context.junit4.SpringRunner
+import java.time.Duration
+import java.time.OffsetDateTime
+import java.time.temporal.ChronoUnit
 
 @ActiveProfiles("test")
 @RunWith(SpringRunner::class)
@@ -49,6 +59,12 @@ class ApplicationTests {
     private lateinit var messageCollector: MessageCollector
     @Autowired
     private lateinit var source: Source
+    @Autowired
+    private lateinit var outboxRelay: OutboxRelay
+    @Autowired
+    private lateinit var outboxEventRepo: OutboxEventRepository
+    @Autowired
+    private lateinit var props: AppProperties
 
     private fun url(path: String) = "http://localhost:$webPort$path"
 
@@ -76,20 +92,68 @@ class ApplicationTests {
         val post = resp.body!!
         assertThat(post.content).isEqualTo("Hello")
         assertThat(post.created).isNotNull()
-        assertThat(post.id).isEqualTo(1)
+        assertThat(post.id).isNotNull()
 
-        val msg = messageCollector.forChannel(source.output()).take()
+        // Events for posts created by other tests may be published as well.
+        outboxRelay.relay()
         val om = jacksonObjectMapper().registerModule(JavaTimeModule())
-        val receivedPost = om.readValue(msg.payload.toString(), Post::class.java)
-        assertThat(receivedPost.id).isEqualTo(1)
+        val receivedPost = generateSequence { messageCollector.forChannel(source.output()).poll() }
+                .map { om.readValue(it.payload.toString(), Post::class.java) }
+                .first { it.id == post.id }
         assertThat(receivedPost.author).isEqualTo("joe")
         assertThat(receivedPost.created).isNotNull()
         assertThat(receivedPost.content).isEqualTo("Hello")
 
-        val resp2 = restTemplate.getForEntity(url("/api/v1/posts/1"), Post::class.java)
+        val resp2 = restTemplate.getForEntity(url("/api/v1/posts/${post.id}"), Post::class.java)
         assertThat(resp2.statusCode).isEqualTo(HttpStatus.OK)
         val post2 = resp2.body!!
-        assertThat(post2).isEqualTo(post)
+        // Post dates are stored with microsecond precision.
+        assertThat(post2).isEqualTo(post.copy(created = post.created.truncatedTo(ChronoUnit.MICROS)))
+    }
+
+    private fun createPost(author: String, content: String): Post {
+        given(usersClientService.userExists(author)).willReturn(true)
+        given(usersClientService.getUser(author)).willReturn(User(author))
+        val resp = restTemplate.postForEntity(url("/api/v1/posts"), NewPostRequest(author, content), Post::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        return resp.body!!
+    }
+
+    @Test
+    fun testGetPostETag() {
+        val post = createPost("jane", "Hello")
+        val resp = restTemplate.getForEntity(url("/api/v1/posts/${post.id}"), Post::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp.headers.eTag).isNotNull()
+
+        val headers = HttpHeaders()
+        headers.ifNoneMatch = listOf(resp.headers.eTag!!)
+        val resp2 = restTemplate.exchange(url("/api/v1/posts/${post.id}"), HttpMethod.GET, HttpEntity<Any>(headers), String::class.java)
+        assertThat(resp2.statusCode).isEqualTo(HttpStatus.NOT_MODIFIED)
+    }
+
+    @Test
+    fun testGetPosts() {
+        val post = createPost("jim", "Hello")
+        val resp = restTemplate.getForEntity(url("/api/v1/posts?ids=${post.id},123"), PostBatchResponse::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(post.id)
+    }
+
+    @Test
+    fun testGetAuthorPosts() {
+        val post = createPost("jack", "Hello")
+        val resp = restTemplate.getForEntity(url("/api/v1/posts?author=jack"), PagedPostsResponse::class.java)
+        assertThat(resp.statusCode).isEqualTo(HttpStatus.OK)
+        assertThat(resp.body!!.posts.map { it.id }).containsExactly(post.id)
+        assertThat(resp.body!!.posts[0].author.id).isEqualTo("jack")
+        assertThat(resp.body!!.next).isNull()
+
+        val cursor = PostCursor.of(post).encode()
+        val resp2 = restTemplate.getForEntity(url("/api/v1/posts?author=jack&before=$cursor"), PagedPostsResponse::class.java)
+        assertThat(resp2.body!!.posts).isEmpty()
+        val resp3 = restTemplate.getForEntity(url("/api/v1/posts?author=jack&before=foo"), String::class.java)
+        assertThat(resp3.statusCode).isEqualTo(HttpStatus.BAD_REQUEST)
     }
 
     @Test
@@ -97,4 +161,76 @@ class ApplicationTests {
         val resp = restTemplate.getForEntity(url("/api/v1/posts/123"), String::class.java)
         assertThat(resp.statusCode).isEqualTo(HttpStatus.NOT_FOUND)
     }
+
+    private fun publishedPosts(): List<Long> {
+        val om = jacksonObjectMapper().registerModule(JavaTimeModule())
+        return generateSequence { messageCollector.forChannel(source.output()).poll() }
+                .map { om.readValue(it.payload.toString(), Post::class.java).id!! }.toList()
+    }
+
+    private fun findEvent(post: Post) = outboxEventRepo.findAll().firstOrNull { it.post == post.id }
+
+    @Test
+    fun testOutboxRelay() {
+        val post = createPost("june", "Hello")
+        // Post event is saved with this post, and published by the relay.
+        assertThat(findEvent(post)).isNotNull()
+        assertThat(publishedPosts()).doesNotContain(post.id)
+
+        outboxRelay.relay()
+        assertThat(publishedPosts()).contains(post.id)
+        assertThat(findEvent(post)).isNull()
+    }
+
+    @Test
+    fun testOutboxRelayClaimedEvents() {
+        val post = createPost("jill", "Hello")
+        val now = OffsetDateTime.now()
+        val event = findEvent(post)!!
+        outboxEventRepo.claim(listOf(event.id!!), "other-relay", now, now.minus(props.outbox.claimTimeout))
+
+        // Events claimed by another relay are not published.
+        outboxRelay.relay()
+        assertThat(publishedPosts()).doesNotContain(post.id)
+        assertThat(findEvent(post)!!.relay).isEqualTo("other-relay")
+
+        // Events are published once this claim expires.
+        val claimed = findEvent(post)!!
+        claimed.claimed = now.minus(props.outbox.claimTimeout).minusMinutes(1)
+        outboxEventRepo.save(claimed)
+        outboxRelay.relay()
+        assertThat(publishedPosts()).contains(post.id)
+        assertThat(findEvent(post)).isNull()
+    }
+
+    @Test
+    fun testOutboxRelayFailure() {
+        val post = createPost("joan", "Hello")
+        val output = source.output() as ChannelInterceptorAware
+        val failure = object : ChannelInterceptor {
+            override fun preSend(message: Message<*>, channel: MessageChannel): Message<*>? =
+                    throw IllegalStateException("Broker unavailable")
+        }
+        val maxRetryDelay = props.outbox.maxRetryDelay
+        try {
+            props.outbox.maxRetryDelay = Duration.ZERO
+            output.addInterceptor(failure)
+            outboxRelay.relay()
+
+            // Unpublished events are released.
+            val event = findEvent(post)!!
+            assertThat(event.relay).isNull()
+            assertThat(event.claimed).isNull()
+        } finally {
+            output.removeInterceptor(failure)
+        }
+        try {
+            // Released events are published again.
+            outboxRelay.relay()
+            assertThat(publishedPosts()).contains(post.id)
+            assertThat(findEvent(post)).isNull()
+        } finally {
+            props.outbox.maxRetryDelay = maxRetryDelay
+        }
+    }
 }
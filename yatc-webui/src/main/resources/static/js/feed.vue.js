@@ -42,9 +42,15 @@ export default {
             } else {
                 this.userFeed = route.params.user;
             }
+            this.setupEventSource();
             this.loadData();
         },
     },
+    beforeDestroy: function () {
+        if (this.eventSource != null) {
+            this.eventSource.close();
+        }
+    },
     methods: {
         loadData: function () {
             console.log("Fetching user feed: " + this.userFeed);
@@ -57,9 +63,25 @@ export default {
             if (this.eventSource != null) {
                 this.eventSource.close();
             }
-            this.eventSource = new EventSource(apiUrl("/api/v1/" + this.userFeed + "/feed/sse"));
-            this.eventSource.onmessage = () => {
-                this.loadData();
+            // Authorization headers cannot be set on SSE connections.
+            const userFeed = this.userFeed;
+            this.eventSource = new EventSource(apiUrl("/api/v1/" + userFeed + "/feed/sse?access_token="
+                + encodeURIComponent(authToken)));
+            this.eventSource.onmessage = (e) => {
+                if (userFeed !== this.userFeed) {
+                    // Drop events for a feed which is not displayed anymore.
+                    return;
+                }
+                const event = JSON.parse(e.data);
+                const posts = event.posts || [];
+                if (posts.length < (event.ids || []).length) {
+                    this.loadData();
+                } else {
+                    // Display new posts without fetching the whole feed.
+                    posts.filter(post => !this.feed.some(item => item.id === post.id))
+                        .sort((a, b) => moment(a.created) - moment(b.created))
+                        .forEach(post => this.feed.unshift(post));
+                }
             };
             this.eventSource.onerror = () => {
                 setTimeout(this.setupEventSource, 1000 * 10);